@@ -2,6 +2,9 @@ package frb.axeron.manager
 
 import android.os.Build
 import android.os.Bundle
+import android.os.IBinder
+import android.os.Parcel
+import android.os.SystemClock
 import androidx.core.os.bundleOf
 import frb.axeron.api.Axeron
 import frb.axeron.ktx.workerHandler
@@ -9,19 +12,39 @@ import frb.axeron.provider.AxeronProvider
 import frb.axeron.server.util.Logger
 import frb.axeron.shared.ShizukuApiConstant.USER_SERVICE_ARG_PGID
 import frb.axeron.shared.ShizukuApiConstant.USER_SERVICE_ARG_TOKEN
+import frb.axeron.starter.ServiceStarter
 import moe.shizuku.api.BinderContainer
-import java.util.concurrent.CountDownLatch
-import java.util.concurrent.TimeUnit
-import java.util.concurrent.TimeoutException
 
 class AxManagerProvider : AxeronProvider() {
 
     companion object {
         private const val EXTRA_BINDER = "moe.shizuku.privileged.api.intent.extra.BINDER"
         private const val METHOD_SEND_USER_SERVICE = "sendUserService"
+        private const val ATTACH_TIMEOUT_MS = 5000L
         private val LOGGER = Logger("AxManagerProvider")
     }
 
+    private fun Bundle.getBinderContainer(key: String): IBinder? {
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            getParcelable(key, BinderContainer::class.java)
+        } else {
+            @Suppress("DEPRECATION")
+            getParcelable(key)
+        }?.binder
+    }
+
+    private fun notifyAttached(callback: IBinder, server: IBinder?) {
+        val data = Parcel.obtain()
+        try {
+            data.writeStrongBinder(server)
+            callback.transact(ServiceStarter.TRANSACTION_ATTACHED, data, null, IBinder.FLAG_ONEWAY)
+        } catch (e: Throwable) {
+            LOGGER.w(e, "user service gone before attach")
+        } finally {
+            data.recycle()
+        }
+    }
+
     override fun call(method: String, arg: String?, extras: Bundle?): Bundle? {
         if (extras == null) return null
 
@@ -32,49 +55,42 @@ class AxManagerProvider : AxeronProvider() {
 
                 val token = extras.getString(USER_SERVICE_ARG_TOKEN) ?: return null
                 val pgid = extras.getInt(USER_SERVICE_ARG_PGID)
-                val binder = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                    extras.getParcelable(EXTRA_BINDER,  BinderContainer::class.java)
-                } else {
-                    @Suppress("DEPRECATION")
-                    extras.getParcelable(EXTRA_BINDER)
-                }?.binder ?: return null
-//                val binder = extras.getParcelableCompat(EXTRA_BINDER, BinderContainer::class.java)?.binder ?: return null
+                val binder = extras.getBinderContainer(EXTRA_BINDER) ?: return null
 
-                val countDownLatch = CountDownLatch(1)
-                var reply: Bundle? = Bundle()
+                val callback = extras.getBinderContainer(ServiceStarter.EXTRA_ATTACH_CALLBACK)
+                    ?: return null
 
+                // attach once the server binder is here and call the user service back,
+                // this binder thread does not wait for either
                 val listener = object : Axeron.OnBinderReceivedListener {
-
                     override fun onBinderReceived() {
-                        try {
-                            Axeron.attachUserService(binder, bundleOf(
-                                USER_SERVICE_ARG_TOKEN to token,
-                                USER_SERVICE_ARG_PGID to pgid
-                            )
-                            )
-                            reply!!.putParcelable(EXTRA_BINDER,
-                                BinderContainer(Axeron.getShizukuService().asBinder())
+                        Axeron.removeBinderReceivedListener(this)
+                        workerHandler.removeCallbacksAndMessages(this)
+
+                        val server = try {
+                            Axeron.attachUserService(
+                                binder, bundleOf(
+                                    USER_SERVICE_ARG_TOKEN to token,
+                                    USER_SERVICE_ARG_PGID to pgid
+                                )
                             )
+                            Axeron.getShizukuService().asBinder()
                         } catch (e: Throwable) {
                             LOGGER.e(e, "attachUserService $token")
-                            reply = null
+                            null
                         }
-
-                        Axeron.removeBinderReceivedListener(this)
-
-                        countDownLatch.countDown()
+                        notifyAttached(callback, server)
                     }
                 }
 
+                workerHandler.postAtTime({
+                    Axeron.removeBinderReceivedListener(listener)
+                    LOGGER.e("Binder not received in ${ATTACH_TIMEOUT_MS}ms, dropping $token")
+                    notifyAttached(callback, null)
+                }, listener, SystemClock.uptimeMillis() + ATTACH_TIMEOUT_MS)
                 Axeron.addBinderReceivedListenerSticky(listener, workerHandler)
 
-                return try {
-                    countDownLatch.await(5, TimeUnit.SECONDS)
-                    reply
-                } catch (e: TimeoutException) {
-                    LOGGER.e(e, "Binder not received in 5s")
-                    null
-                }
+                Bundle()
             } catch (e: Throwable) {
                 LOGGER.e(e, "sendUserService")
                 null
@@ -9,6 +9,7 @@ import com.topjohnwu.superuser.Shell
 import frb.axeron.Axerish
 import frb.axeron.api.core.AxeronSettings
 import frb.axeron.api.core.Engine
+import frb.axeron.manager.receiver.PackageChangedReceiver
 import frb.axeron.manager.ui.util.createShellBuilder
 import me.zhanghai.android.appiconloader.coil.AppIconFetcher
 import me.zhanghai.android.appiconloader.coil.AppIconKeyer
@@ -71,5 +72,7 @@ class AxeronApplication : Engine() {
                             .header("Accept-Language", Locale.getDefault().toLanguageTag()).build()
                     )
                 }.build()
+
+        PackageChangedReceiver.register(context)
     }
 }
\ No newline at end of file
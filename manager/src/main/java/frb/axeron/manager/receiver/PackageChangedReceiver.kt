@@ -0,0 +1,60 @@
+package frb.axeron.manager.receiver
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.util.Log
+import androidx.core.content.ContextCompat
+import frb.axeron.api.Axeron
+import frb.axeron.ktx.workerHandler
+import frb.axeron.server.IAxeronService
+
+/**
+ * Forwards package broadcasts to the server, which has no receiver of its own. The server
+ * drops what it cached about the changed package when one arrives.
+ */
+class PackageChangedReceiver : BroadcastReceiver() {
+
+    companion object {
+        const val TAG = "PackageChangedReceiver"
+
+        fun register(context: Context) {
+            val filter = IntentFilter().apply {
+                addAction(Intent.ACTION_PACKAGE_ADDED)
+                addAction(Intent.ACTION_PACKAGE_REMOVED)
+                addAction(Intent.ACTION_PACKAGE_REPLACED)
+                addDataScheme("package")
+            }
+            ContextCompat.registerReceiver(
+                context,
+                PackageChangedReceiver(),
+                filter,
+                ContextCompat.RECEIVER_NOT_EXPORTED
+            )
+
+            // nothing was forwarded while the manager was not running, so every new server
+            // binder starts with a change that names no package and invalidates everything
+            Axeron.addBinderReceivedListenerSticky(object : Axeron.OnBinderReceivedListener {
+                override fun onBinderReceived() {
+                    dispatch(Intent(Intent.ACTION_PACKAGE_CHANGED))
+                }
+            }, workerHandler)
+        }
+
+        private fun dispatch(intent: Intent) {
+            workerHandler.post {
+                val binder = Axeron.getBinder() ?: return@post
+                try {
+                    IAxeronService.Stub.asInterface(binder).dispatchPackageChanged(intent)
+                } catch (e: Exception) {
+                    Log.w(TAG, "dispatchPackageChanged", e)
+                }
+            }
+        }
+    }
+
+    override fun onReceive(context: Context, intent: Intent) {
+        dispatch(intent)
+    }
+}
@@ -8,6 +8,8 @@ import androidx.compose.foundation.verticalScroll
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.automirrored.filled.ArrowBack
 import androidx.compose.material.icons.filled.DeveloperMode
+import androidx.compose.material.icons.filled.RocketLaunch
+import androidx.compose.material.icons.filled.Terminal
 import androidx.compose.material.icons.filled.Web
 import androidx.compose.material3.ExperimentalMaterial3Api
 import androidx.compose.material3.Icon
@@ -21,6 +23,7 @@ import androidx.compose.material3.TopAppBarDefaults
 import androidx.compose.material3.TopAppBarScrollBehavior
 import androidx.compose.material3.rememberTopAppBarState
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.input.nestedscroll.nestedScroll
 import androidx.compose.ui.res.stringResource
@@ -29,6 +32,7 @@ import androidx.compose.ui.unit.dp
 import com.ramcosta.composedestinations.annotation.Destination
 import com.ramcosta.composedestinations.annotation.RootGraph
 import com.ramcosta.composedestinations.navigation.DestinationsNavigator
+import frb.axeron.api.Axeron
 import frb.axeron.manager.R
 import frb.axeron.manager.ui.component.SettingsItem
 import frb.axeron.manager.ui.util.LocalSnackbarHost
@@ -42,6 +46,10 @@ fun DeveloperScreen(navigator: DestinationsNavigator, viewModelGlobal: ViewModel
     val scrollBehavior = TopAppBarDefaults.pinnedScrollBehavior(rememberTopAppBarState())
     val snackBarHost = LocalSnackbarHost.current
 
+    LaunchedEffect(Unit) {
+        settingsViewModel.loadServerFeatures()
+    }
+
     Scaffold(
         topBar = {
             TopBar(
@@ -80,6 +88,28 @@ fun DeveloperScreen(navigator: DestinationsNavigator, viewModelGlobal: ViewModel
                     settingsViewModel.setWebDebugging(it)
                 }
             )
+
+            SettingsItem(
+                enabled = settingsViewModel.isDeveloperModeEnabled && Axeron.pingBinder(),
+                iconVector = Icons.Filled.RocketLaunch,
+                label = stringResource(R.string.enable_userservice_standby),
+                description = stringResource(R.string.enable_userservice_standby_msg),
+                checked = settingsViewModel.isUserServiceStandbyEnabled,
+                onSwitchChange = {
+                    settingsViewModel.setUserServiceStandby(it)
+                }
+            )
+
+            SettingsItem(
+                enabled = settingsViewModel.isDeveloperModeEnabled && Axeron.pingBinder(),
+                iconVector = Icons.Filled.Terminal,
+                label = stringResource(R.string.enable_spawner),
+                description = stringResource(R.string.enable_spawner_msg),
+                checked = settingsViewModel.isSpawnerEnabled,
+                onSwitchChange = {
+                    settingsViewModel.setSpawner(it)
+                }
+            )
         }
     }
 }
@@ -0,0 +1,32 @@
+package frb.axeron.manager.ui.util
+
+import android.content.pm.PackageInfo
+import android.util.Log
+import frb.axeron.api.Axeron
+import frb.axeron.server.PackageSnapshots
+import frb.axeron.shared.AxeronApiConstant
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Installed packages of a user, mirrored from the server's versioned snapshot. Only the
+ * first call per user pulls the whole list; later calls fetch what changed since.
+ */
+object InstalledPackages {
+
+    private const val TAG = "InstalledPackages"
+
+    private val mirrors = ConcurrentHashMap<Int, PackageSnapshots.Mirror>()
+
+    fun get(userId: Int = 0): List<PackageInfo> {
+        val binder = Axeron.getBinder()
+        if (binder != null) {
+            try {
+                return mirrors.getOrPut(userId) { PackageSnapshots.Mirror(userId) }
+                    .get(binder, AxeronApiConstant.server.BINDER_DESCRIPTOR)
+            } catch (e: Exception) {
+                Log.w(TAG, "snapshot unavailable, falling back to a full query", e)
+            }
+        }
+        return Axeron.getPackages(userId)
+    }
+}
@@ -19,6 +19,7 @@ import com.google.gson.Gson
 import frb.axeron.api.Axeron
 import frb.axeron.manager.AxeronApplication.Companion.axeronApp
 import frb.axeron.manager.ui.util.HanziToPinyin
+import frb.axeron.manager.ui.util.InstalledPackages
 import frb.axeron.manager.ui.webui.AppIconUtil
 import frb.axeron.server.util.AxWebLoader
 import frb.axeron.shared.AxeronApiConstant
@@ -107,7 +108,7 @@ class AppsViewModel(application: Application) : AndroidViewModel(application) {
 
             // Ambil packageName yang sudah tersimpan
             addedPackageNames = getSavedPackageNames()
-            val packages = Axeron.getPackages(0)
+            val packages = InstalledPackages.get(0)
 
             val apps = packages.map {
                 val appInfo = it.applicationInfo!!
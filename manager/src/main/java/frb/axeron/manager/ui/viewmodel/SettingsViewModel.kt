@@ -1,16 +1,22 @@
 package frb.axeron.manager.ui.viewmodel
 
 import android.app.Application
+import android.util.Log
 import androidx.compose.runtime.getValue
 import androidx.compose.runtime.mutableIntStateOf
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.setValue
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
+import frb.axeron.api.Axeron
 import frb.axeron.api.core.AxeronSettings
 import frb.axeron.manager.ui.theme.basePrimaryDefault
 import frb.axeron.manager.ui.theme.toHexString
+import frb.axeron.server.ServerFeatures
+import frb.axeron.shared.AxeronApiConstant
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 class SettingsViewModel(application: Application) : AndroidViewModel(application) {
 //    private val prefs = AxeronSettings.getPreferences()
@@ -115,6 +121,49 @@ class SettingsViewModel(application: Application) : AndroidViewModel(application
         }
     }
 
+    // kept by the server, read it again whenever the screen opens
+    var isUserServiceStandbyEnabled by mutableStateOf(false)
+        private set
+
+    var isSpawnerEnabled by mutableStateOf(false)
+        private set
+
+    fun loadServerFeatures() {
+        viewModelScope.launch {
+            isUserServiceStandbyEnabled =
+                setServerFeature(ServerFeatures.FEATURE_USER_SERVICE_STANDBY, -1)
+            isSpawnerEnabled = setServerFeature(ServerFeatures.FEATURE_SPAWNER, -1)
+        }
+    }
+
+    fun setUserServiceStandby(enabled: Boolean) {
+        viewModelScope.launch {
+            isUserServiceStandbyEnabled = setServerFeature(
+                ServerFeatures.FEATURE_USER_SERVICE_STANDBY,
+                if (enabled) 1 else 0
+            )
+        }
+    }
+
+    fun setSpawner(enabled: Boolean) {
+        viewModelScope.launch {
+            isSpawnerEnabled = setServerFeature(
+                ServerFeatures.FEATURE_SPAWNER,
+                if (enabled) 1 else 0
+            )
+        }
+    }
+
+    private suspend fun setServerFeature(feature: Int, enabled: Int) = withContext(Dispatchers.IO) {
+        val binder = Axeron.getBinder() ?: return@withContext false
+        try {
+            ServerFeatures.set(binder, AxeronApiConstant.server.BINDER_DESCRIPTOR, feature, enabled)
+        } catch (e: Exception) {
+            Log.w("SettingsViewModel", "setServerFeature $feature", e)
+            false
+        }
+    }
+
     var customPrimaryColorHex by mutableStateOf(
         AxeronSettings.getCustomPrimaryColor() ?: basePrimaryDefault.toHexString()
     )
@@ -2,6 +2,7 @@ package frb.axeron.manager.ui.webui;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 import android.webkit.WebResourceRequest;
@@ -12,14 +13,19 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
 
 import frb.axeron.api.Axeron;
+import frb.axeron.server.FileStats;
 import frb.axeron.server.util.AxWebLoader;
+import frb.axeron.shared.AxeronApiConstant;
 import frb.axeron.shared.PathHelper;
 
 public class AxPathHandler implements AxWebLoader.PathHandler {
@@ -35,6 +41,10 @@ public class AxPathHandler implements AxWebLoader.PathHandler {
 
     @NonNull
     private final File mDirectory;
+    @NonNull
+    private final String mDirectoryPath;
+    // one handler per WebUI, a cached asset is checked against the file once within it
+    private final Set<String> mValidated = ConcurrentHashMap.newKeySet();
 
     private final InsetsSupplier mInsetsSupplier;
 
@@ -42,7 +52,8 @@ public class AxPathHandler implements AxWebLoader.PathHandler {
     public AxPathHandler(@NonNull File directory, @NonNull InsetsSupplier insetsSupplier) {
         try {
             mInsetsSupplier = insetsSupplier;
-            mDirectory = new File(getCanonicalDirPath(directory));
+            mDirectoryPath = getCanonicalDirPath(directory);
+            mDirectory = new File(mDirectoryPath);
             if (!isAllowedInternalStorageDir()) {
                 throw new IllegalArgumentException("The given directory \"" + directory
                         + "\" doesn't exist under an allowed app internal storage directory");
@@ -111,31 +122,84 @@ public class AxPathHandler implements AxWebLoader.PathHandler {
             );
         }
         try {
-            File file = getCanonicalFileIfChild(mDirectory, path);
-            if (file != null) {
-                Log.d(TAG, "Requested path: " + getCanonicalDirPath(file));
-                InputStream is = handleSvgzStream(
-                        file.getPath(),
-                        Axeron.newFileService().setFileInputStream(getCanonicalDirPath(file))
-                );
-//                if (is == null) {
-//                    Log.d(TAG, "Requested path is null: " + getCanonicalDirPath(file));
-//                    return null;
-//                }
-                String mimeType = guessMimeType(path);
-                Log.d(TAG, "Requested path is: " + getCanonicalDirPath(file));
-                return new WebResourceResponse(mimeType, null, is);
-            } else {
+            String canonicalPath = new File(mDirectory, path).getCanonicalPath();
+            if (!canonicalPath.startsWith(mDirectoryPath)) {
                 Log.e(TAG, String.format(
                         "The requested file: %s is outside the mounted directory: %s", path,
                         mDirectory));
+                return new WebResourceResponse(null, null, null);
+            }
+            Log.d(TAG, "Requested path: " + canonicalPath);
+            String mimeType = guessMimeType(path);
+
+            if (!WebAssetCache.isCacheable(canonicalPath)) {
+                InputStream is = Axeron.newFileService().setFileInputStream(canonicalPath);
+                return new WebResourceResponse(mimeType, null,
+                        is == null ? null : handleSvgzStream(canonicalPath, is));
+            }
+
+            WebAssetCache.Entry entry = WebAssetCache.get(canonicalPath);
+            if (entry == null || !mValidated.contains(canonicalPath)) {
+                IBinder binder = Axeron.getBinder();
+                long[] stat = binder == null ? null : FileStats.stat(binder,
+                        AxeronApiConstant.server.BINDER_DESCRIPTOR, canonicalPath);
+                if (stat == null) {
+                    WebAssetCache.remove(canonicalPath);
+                    return new WebResourceResponse(mimeType, null, null);
+                }
+                if (entry == null || !entry.matches(stat[0], stat[1])) {
+                    entry = read(canonicalPath, stat[0], stat[1]);
+                    if (entry == null) {
+                        InputStream is = Axeron.newFileService().setFileInputStream(canonicalPath);
+                        return new WebResourceResponse(mimeType, null,
+                                is == null ? null : handleSvgzStream(canonicalPath, is));
+                    }
+                }
+                mValidated.add(canonicalPath);
             }
+
+            return new WebResourceResponse(mimeType, null,
+                    handleSvgzStream(canonicalPath, new ByteArrayInputStream(entry.data)));
         } catch (IOException | RemoteException e) {
             Log.e(TAG, "Error opening the requested path: " + path);
         }
         return new WebResourceResponse(null, null, null);
     }
 
+    /**
+     * Reads a file into the cache, or returns {@code null} if it is too large to keep or
+     * no longer has the size it was stat'ed with.
+     */
+    @Nullable
+    private static WebAssetCache.Entry read(@NonNull String canonicalPath, long lastModified, long size)
+            throws IOException, RemoteException {
+        if (size > WebAssetCache.MAX_ENTRY_BYTES) return null;
+
+        InputStream is = Axeron.newFileService().setFileInputStream(canonicalPath);
+        if (is == null) return null;
+        byte[] data;
+        try {
+            data = readAtMost(is, WebAssetCache.MAX_ENTRY_BYTES + 1);
+        } finally {
+            is.close();
+        }
+        // grew since it was stat'ed, the stat no longer describes these bytes
+        if (data.length != size) return null;
+        return WebAssetCache.put(canonicalPath, lastModified, size, data);
+    }
+
+    @NonNull
+    private static byte[] readAtMost(@NonNull InputStream is, int limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while (out.size() < limit
+                && (n = is.read(buffer, 0, Math.min(buffer.length, limit - out.size()))) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
     private boolean isAllowedInternalStorageDir() throws IOException {
         String dir = getCanonicalDirPath(mDirectory);
 
@@ -0,0 +1,37 @@
+package frb.axeron.manager.ui.webui
+
+import android.webkit.WebView
+
+/**
+ * Queues JavaScript for a WebView and runs everything queued within one frame as a single
+ * `evaluateJavascript` call, instead of posting one closure per callback.
+ */
+class JsCallbackChannel(private val webView: WebView) {
+
+    companion object {
+        private const val FLUSH_DELAY_MS = 16L
+    }
+
+    private val lock = Any()
+    private var pending = StringBuilder()
+    private var scheduled = false
+
+    private val flush = Runnable {
+        val script = synchronized(lock) {
+            scheduled = false
+            pending.toString().also { pending = StringBuilder() }
+        }
+        if (script.isNotEmpty()) {
+            webView.evaluateJavascript(script, null)
+        }
+    }
+
+    fun post(script: String) {
+        synchronized(lock) {
+            pending.append(script).append('\n')
+            if (scheduled) return
+            scheduled = true
+        }
+        webView.postDelayed(flush, FLUSH_DELAY_MS)
+    }
+}
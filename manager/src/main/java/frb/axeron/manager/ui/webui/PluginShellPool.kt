@@ -0,0 +1,259 @@
+package frb.axeron.manager.ui.webui
+
+import android.util.Log
+import frb.axeron.api.Axeron
+import frb.axeron.api.AxeronPluginService
+import java.io.BufferedReader
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.io.OutputStream
+import java.util.UUID
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Long-lived `sh` sessions shared by the WebUI bridges of one plugin.
+ *
+ * Starting a shell for every `exec` costs far more than the one-liners plugins usually
+ * run. A session stays open and runs each command in a subshell with stdin from
+ * /dev/null, so `cd` and `export` never leak into the next command. Each command is
+ * followed by a unique marker that carries its exit code and ends its stdout and stderr.
+ * A command that does not finish within [COMMAND_TIMEOUT_MS] fails and its session is
+ * closed.
+ * Sessions idle for [IDLE_TIMEOUT_MS] are closed. When every session is busy or one
+ * fails, the command runs in a fresh shell as before.
+ */
+class PluginShellPool private constructor(private val pluginId: String) {
+
+    data class Result(val code: Int, val out: String, val err: String)
+
+    companion object {
+        private const val TAG = "PluginShellPool"
+
+        private const val MAX_SESSIONS = 3
+        private const val IDLE_TIMEOUT_MS = 60_000L
+        private const val EVICT_INTERVAL_MS = 15_000L
+        private const val COMMAND_TIMEOUT_MS = 120_000L
+
+        // what timeout(1) exits with
+        private const val CODE_TIMEOUT = 124
+
+        private val pools = ConcurrentHashMap<String, PluginShellPool>()
+
+        private val evictor = Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "PluginShellPool-evict").apply { isDaemon = true }
+        }.apply {
+            scheduleWithFixedDelay(
+                { pools.values.forEach { it.evictIdle() } },
+                EVICT_INTERVAL_MS, EVICT_INTERVAL_MS, TimeUnit.MILLISECONDS
+            )
+        }
+
+        fun forPlugin(modDir: File): PluginShellPool =
+            pools.getOrPut(modDir.absolutePath) { PluginShellPool(modDir.name) }
+    }
+
+    private val idle = ConcurrentLinkedDeque<Session>()
+    private val sessionCount = AtomicInteger()
+
+    fun exec(cmd: String): Result {
+        val session = acquire() ?: return execFresh(cmd)
+        try {
+            session.send(cmd)
+        } catch (e: IOException) {
+            // the command never reached the shell, so it is safe to run it elsewhere
+            Log.w(TAG, "[$pluginId] session failed, running in a fresh shell", e)
+            discard(session)
+            return execFresh(cmd)
+        }
+
+        val result = session.await()
+        if (session.isBroken) discard(session) else release(session)
+        return result
+    }
+
+    private fun execFresh(cmd: String): Result {
+        val result = AxeronPluginService.execWithIO(
+            cmd = cmd,
+            useBusybox = false,
+            hideStderr = false
+        )
+        return Result(result.code, result.out, result.err)
+    }
+
+    private fun acquire(): Session? {
+        while (true) {
+            val session = idle.pollFirst() ?: break
+            if (session.isAlive) return session
+            discard(session)
+        }
+        if (sessionCount.incrementAndGet() > MAX_SESSIONS) {
+            sessionCount.decrementAndGet()
+            return null
+        }
+        return try {
+            Session()
+        } catch (e: Exception) {
+            Log.w(TAG, "[$pluginId] failed to start a session", e)
+            sessionCount.decrementAndGet()
+            null
+        }
+    }
+
+    private fun release(session: Session) {
+        session.lastUsed = System.currentTimeMillis()
+        idle.offerFirst(session)
+    }
+
+    private fun discard(session: Session) {
+        session.close()
+        sessionCount.decrementAndGet()
+    }
+
+    private fun evictIdle() {
+        val now = System.currentTimeMillis()
+        val it = idle.descendingIterator()
+        while (it.hasNext()) {
+            val session = it.next()
+            if (now - session.lastUsed >= IDLE_TIMEOUT_MS || !session.isAlive) {
+                if (idle.removeFirstOccurrence(session)) discard(session)
+            }
+        }
+    }
+
+    private class Session {
+        private val process: Process = Axeron.newProcess(arrayOf("sh"), null, null)
+        private val stdin: OutputStream = process.outputStream
+        private val stdout = Pump(process.inputStream)
+        private val stderr = Pump(process.errorStream)
+
+        private var out: CompletableFuture<Pair<String, String>>? = null
+        private var err: CompletableFuture<Pair<String, String>>? = null
+
+        @Volatile
+        var lastUsed = System.currentTimeMillis()
+
+        // set when a command did not finish cleanly, the session must not be reused
+        var isBroken = false
+            private set
+
+        val isAlive: Boolean
+            get() = stdout.isOpen && stderr.isOpen
+
+        /**
+         * Writes [cmd] to the shell. The command is passed to `eval` as one single-quoted
+         * word, so nothing in it (unbalanced quotes, parentheses, heredocs) can reach the
+         * parser of the session itself and swallow the markers that follow.
+         */
+        fun send(cmd: String) {
+            val marker = "__AX_END_${UUID.randomUUID().toString().replace("-", "")}__"
+            out = stdout.expect(marker)
+            err = stderr.expect(marker)
+            val script = buildString {
+                append("( eval ").append(shellQuote(cmd)).append(" ) </dev/null\n")
+                append("__ax_code=\$?\n")
+                append("printf '%s:%d\\n' '").append(marker).append("' \"\$__ax_code\"\n")
+                append("printf '%s\\n' '").append(marker).append("' >&2\n")
+            }
+            stdin.write(script.toByteArray())
+            stdin.flush()
+        }
+
+        /**
+         * Waits for the command written by [send]. It may already have run, so a failure
+         * here is reported as the result instead of running the command again.
+         */
+        fun await(): Result {
+            return try {
+                val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COMMAND_TIMEOUT_MS)
+                val (outText, codeText) = out!!.get(COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                val remaining = (deadline - System.nanoTime()).coerceAtLeast(0)
+                val (errText, _) = err!!.get(remaining, TimeUnit.NANOSECONDS)
+                Result(codeText.toIntOrNull() ?: -1, outText, errText)
+            } catch (_: TimeoutException) {
+                isBroken = true
+                Result(CODE_TIMEOUT, "", "command timed out after ${COMMAND_TIMEOUT_MS}ms")
+            } catch (e: Exception) {
+                isBroken = true
+                Result(-1, "", "shell session failed: ${e.cause ?: e}")
+            }
+        }
+
+        fun close() {
+            runCatching { stdin.close() }
+            process.destroy()
+        }
+
+        private fun shellQuote(text: String): String =
+            "'" + text.replace("'", "'\\''") + "'"
+    }
+
+    /**
+     * Reads one stream of a session on its own thread and hands everything before the
+     * expected marker to the waiting command.
+     */
+    private class Pump(stream: InputStream) : Thread("PluginShellPool-pump") {
+        private val reader = BufferedReader(InputStreamReader(stream))
+
+        @Volatile
+        private var marker: String? = null
+
+        @Volatile
+        private var pending: CompletableFuture<Pair<String, String>>? = null
+
+        private val lines = StringBuilder()
+
+        @Volatile
+        var isOpen = true
+            private set
+
+        init {
+            isDaemon = true
+            start()
+        }
+
+        fun expect(marker: String): CompletableFuture<Pair<String, String>> {
+            val future = CompletableFuture<Pair<String, String>>()
+            this.pending = future
+            this.marker = marker
+            if (!isOpen) future.completeExceptionally(IllegalStateException("session closed"))
+            return future
+        }
+
+        override fun run() {
+            try {
+                while (true) {
+                    val line = reader.readLine() ?: break
+                    val marker = marker
+                    val index = if (marker != null) line.indexOf(marker) else -1
+                    if (index < 0) {
+                        if (lines.isNotEmpty()) lines.append('\n')
+                        lines.append(line)
+                        continue
+                    }
+
+                    // output that did not end with a newline shares the marker's line
+                    if (index > 0) {
+                        if (lines.isNotEmpty()) lines.append('\n')
+                        lines.append(line, 0, index)
+                    }
+                    val tail = line.substring(index + marker!!.length).removePrefix(":")
+                    val text = lines.toString()
+                    lines.setLength(0)
+                    this.marker = null
+                    pending?.complete(text to tail)
+                }
+            } catch (_: Exception) {
+            }
+            isOpen = false
+            pending?.completeExceptionally(IllegalStateException("session closed"))
+        }
+    }
+}
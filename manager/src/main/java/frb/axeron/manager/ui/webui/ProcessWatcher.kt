@@ -0,0 +1,197 @@
+package frb.axeron.manager.ui.webui
+
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.MessageQueue
+import android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR
+import android.os.MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import java.io.ByteArrayOutputStream
+import java.io.FileDescriptor
+import java.io.FileInputStream
+import java.io.InputStream
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Reads the output of a running process line by line without a thread per process.
+ *
+ * Pipes backed by a file descriptor are watched by one shared looper through
+ * [MessageQueue.addOnFileDescriptorEventListener] and read only when data is ready. Once
+ * both streams reach EOF the exit code is collected on [executor]. Streams without a file
+ * descriptor fall back to a reader thread.
+ *
+ * [pause] stops reading; once the pipe buffer fills up the process blocks on its next
+ * write until [resume] is called.
+ */
+class ProcessWatcher(
+    private val process: Process,
+    private val executor: Executor,
+    private val onLine: (stderr: Boolean, line: String) -> Unit,
+    private val onExit: (code: Int, stderr: String) -> Unit,
+) {
+
+    companion object {
+        private const val MAX_STDERR_KEPT = 64 * 1024
+
+        private val looper by lazy {
+            HandlerThread("ProcessWatcher").apply { start() }.looper
+        }
+
+        private val queue: MessageQueue
+            get() = looper.queue
+
+        private val handler by lazy { Handler(looper) }
+
+        // only touched on the looper thread
+        private val readBuffer = ByteArray(8192)
+    }
+
+    private val open = AtomicInteger(2)
+    private val stderrText = StringBuilder()
+    private val streams = arrayOf(Stream(false, process.inputStream), Stream(true, process.errorStream))
+    private val pauseLock = Object()
+
+    @Volatile
+    private var paused = false
+
+    fun start() {
+        runCatching { process.outputStream.close() }
+        streams.forEach { it.start() }
+    }
+
+    fun pause() {
+        paused = true
+    }
+
+    fun resume() {
+        synchronized(pauseLock) {
+            paused = false
+            pauseLock.notifyAll()
+        }
+        streams.forEach { it.resume() }
+    }
+
+    fun destroy() {
+        process.destroy()
+        // drain to EOF so the streams get closed
+        resume()
+    }
+
+    private fun onStreamClosed() {
+        if (open.decrementAndGet() != 0) return
+        executor.execute {
+            val code = try {
+                process.waitFor()
+            } catch (_: InterruptedException) {
+                -1
+            }
+            onExit(code, synchronized(stderrText) { stderrText.toString() })
+        }
+    }
+
+    private inner class Stream(
+        private val isStderr: Boolean,
+        private val input: InputStream,
+    ) : MessageQueue.OnFileDescriptorEventListener {
+
+        private val line = ByteArrayOutputStream()
+
+        // set on the looper thread while the listener is unregistered because of a pause
+        private var parkedFd: FileDescriptor? = null
+
+        fun start() {
+            val fd = (input as? FileInputStream)?.fd
+            if (fd != null && fd.valid()) {
+                handler.post { queue.addOnFileDescriptorEventListener(fd, EVENT_INPUT or EVENT_ERROR, this) }
+            } else {
+                Thread({ readBlocking() }, "ProcessWatcher-fallback").apply {
+                    isDaemon = true
+                    start()
+                }
+            }
+        }
+
+        override fun onFileDescriptorEvents(fd: FileDescriptor, events: Int): Int {
+            if (events and EVENT_INPUT != 0) {
+                val n = try {
+                    Os.read(fd, readBuffer, 0, readBuffer.size)
+                } catch (e: ErrnoException) {
+                    if (e.errno == OsConstants.EAGAIN || e.errno == OsConstants.EINTR) {
+                        return EVENT_INPUT or EVENT_ERROR
+                    }
+                    -1
+                }
+                if (n > 0) {
+                    consume(readBuffer, n)
+                    if (paused) {
+                        parkedFd = fd
+                        return 0
+                    }
+                    return EVENT_INPUT or EVENT_ERROR
+                }
+            }
+            // close only after the listener has been unregistered by returning 0
+            handler.post { finish() }
+            return 0
+        }
+
+        fun resume() {
+            handler.post {
+                val fd = parkedFd ?: return@post
+                parkedFd = null
+                queue.addOnFileDescriptorEventListener(fd, EVENT_INPUT or EVENT_ERROR, this)
+            }
+        }
+
+        private fun readBlocking() {
+            val buffer = ByteArray(8192)
+            try {
+                while (true) {
+                    synchronized(pauseLock) {
+                        while (paused) pauseLock.wait()
+                    }
+                    val n = input.read(buffer)
+                    if (n < 0) break
+                    consume(buffer, n)
+                }
+            } catch (_: Exception) {
+            }
+            finish()
+        }
+
+        private fun consume(buffer: ByteArray, length: Int) {
+            var start = 0
+            for (i in 0 until length) {
+                if (buffer[i] == '\n'.code.toByte()) {
+                    line.write(buffer, start, i - start)
+                    emitLine()
+                    start = i + 1
+                }
+            }
+            line.write(buffer, start, length - start)
+        }
+
+        private fun emitLine() {
+            val text = line.toString(Charsets.UTF_8.name())
+            line.reset()
+            if (isStderr) {
+                synchronized(stderrText) {
+                    if (stderrText.length < MAX_STDERR_KEPT) {
+                        if (stderrText.isNotEmpty()) stderrText.append('\n')
+                        stderrText.append(text)
+                    }
+                }
+            }
+            onLine(isStderr, text)
+        }
+
+        private fun finish() {
+            if (line.size() > 0) emitLine()
+            runCatching { input.close() }
+            onStreamClosed()
+        }
+    }
+}
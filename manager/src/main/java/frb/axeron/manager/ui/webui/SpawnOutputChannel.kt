@@ -0,0 +1,102 @@
+package frb.axeron.manager.ui.webui
+
+import android.webkit.WebView
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * Delivers the output of one spawned process to its JS emitter in frames.
+ *
+ * Lines are collected until [FRAME_INTERVAL_MS] has passed or [FRAME_BYTES] are buffered
+ * and then handed to the page as one JSON array, replayed by a single dispatcher function
+ * into the usual `stdout`/`stderr` `data` events. Each frame is acknowledged when the
+ * page has run it; while [MAX_FRAMES_IN_FLIGHT] frames are unacknowledged the process
+ * output is no longer read, so a chatty child is slowed down instead of flooding the UI
+ * thread.
+ */
+class SpawnOutputChannel(
+    private val webView: WebView,
+    private val callbackFunc: String,
+) {
+
+    companion object {
+        private const val FRAME_INTERVAL_MS = 50L
+        private const val FRAME_BYTES = 16 * 1024
+        private const val MAX_FRAMES_IN_FLIGHT = 2
+    }
+
+    private val lock = Any()
+    private var frame = JSONArray()
+    private var frameBytes = 0
+    private var scheduled = false
+    private var inFlight = 0
+    private var finished = false
+
+    var watcher: ProcessWatcher? = null
+
+    private val flushTimer = Runnable {
+        synchronized(lock) {
+            scheduled = false
+            flushLocked()
+        }
+    }
+
+    fun onLine(isStderr: Boolean, line: String) {
+        synchronized(lock) {
+            frame.put(if (isStderr) 1 else 0)
+            frame.put(line)
+            frameBytes += line.length + 1
+            if (frameBytes >= FRAME_BYTES) {
+                flushLocked()
+            } else if (!scheduled) {
+                scheduled = true
+                webView.postDelayed(flushTimer, FRAME_INTERVAL_MS)
+            }
+        }
+    }
+
+    /**
+     * Flushes what is left and emits the exit events after it.
+     */
+    fun onExit(code: Int, stderr: String) {
+        val script = buildString {
+            append("(function() { try { ${callbackFunc}.emit('exit', ${code}); } catch(e) { console.error(`emitExit error: \${e}`); } })();")
+            if (code != 0) {
+                append(
+                    "(function() { try { var err = new Error(); err.exitCode = ${code}; err.message = ${
+                        JSONObject.quote(stderr + "\n")
+                    };${callbackFunc}.emit('error', err); } catch(e) { console.error('emitErr', e); } })();"
+                )
+            }
+        }
+        synchronized(lock) {
+            finished = true
+            flushLocked()
+        }
+        webView.post { webView.evaluateJavascript(script, null) }
+    }
+
+    private fun flushLocked() {
+        if (frame.length() == 0) return
+        val script =
+            "(function(cb, f) { for (var i = 0; i < f.length; i += 2) { try { (f[i] ? cb.stderr : cb.stdout).emit('data', f[i + 1]); } catch(e) { console.error('emitData', e); } } })(${callbackFunc}, ${frame});"
+        frame = JSONArray()
+        frameBytes = 0
+
+        inFlight++
+        if (inFlight >= MAX_FRAMES_IN_FLIGHT && !finished) {
+            watcher?.pause()
+        }
+        webView.post {
+            webView.evaluateJavascript(script) { onFrameDone() }
+        }
+    }
+
+    private fun onFrameDone() {
+        val resume = synchronized(lock) {
+            inFlight--
+            inFlight < MAX_FRAMES_IN_FLIGHT
+        }
+        if (resume) watcher?.resume()
+    }
+}
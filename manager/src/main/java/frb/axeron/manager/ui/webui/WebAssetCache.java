@@ -0,0 +1,80 @@
+package frb.axeron.manager.ui.webui;
+
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Size bounded, process wide cache of plugin WebUI assets, keyed by canonical path and
+ * checked against the modification time and size the file had when it was read.
+ * <p>
+ * Plugin files can only be read through the server, so the caller stats a file once per
+ * WebUI session (a single small transaction) and keeps the bytes for as long as both
+ * values still match: opening the WebUI again costs one stat per asset instead of reading
+ * it, and reloading a page within the same WebUI costs nothing. Only static asset types
+ * are kept, pages and data files a plugin may rewrite while it runs always come from disk.
+ */
+final class WebAssetCache {
+
+    static final int MAX_ENTRY_BYTES = 1024 * 1024;
+    private static final int MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final String[] CACHEABLE_EXTENSIONS = {
+            ".js", ".mjs", ".css", ".woff", ".woff2", ".ttf", ".otf", ".png", ".jpg", ".jpeg",
+            ".gif", ".webp", ".svg", ".svgz", ".ico", ".wasm"
+    };
+
+    static final class Entry {
+        final long lastModified;
+        final long size;
+        @NonNull
+        final byte[] data;
+
+        Entry(long lastModified, long size, @NonNull byte[] data) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.data = data;
+        }
+
+        boolean matches(long lastModified, long size) {
+            return this.lastModified == lastModified && this.size == size;
+        }
+    }
+
+    private static final LruCache<String, Entry> CACHE = new LruCache<>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, Entry value) {
+            return value.data.length;
+        }
+    };
+
+    private WebAssetCache() {
+    }
+
+    static boolean isCacheable(@NonNull String path) {
+        String lower = path.toLowerCase(Locale.ROOT);
+        for (String extension : CACHEABLE_EXTENSIONS) {
+            if (lower.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    @Nullable
+    static Entry get(@NonNull String canonicalPath) {
+        return CACHE.get(canonicalPath);
+    }
+
+    @NonNull
+    static Entry put(@NonNull String canonicalPath, long lastModified, long size, @NonNull byte[] data) {
+        Entry entry = new Entry(lastModified, size, data);
+        CACHE.put(canonicalPath, entry);
+        return entry;
+    }
+
+    static void remove(@NonNull String canonicalPath) {
+        CACHE.remove(canonicalPath);
+    }
+}
@@ -57,6 +57,8 @@ class WebUIActivity : ComponentActivity() {
     private var pendingDownloadData: ByteArray? = null
     private var pendingDownloadSuggestedFilename: String? = null
 
+    private var ksuInterface: KsuWebInterface? = null
+
     private var insetsContinuation: CancellableContinuation<Unit>? = null
 
     fun erudaConsole(context: android.content.Context): String {
@@ -235,7 +237,10 @@ class WebUIActivity : ComponentActivity() {
             settings.allowFileAccess = false
 
             addJavascriptInterface(AxWebInterface(this@WebUIActivity, pluginDir), "Axeron")
-            addJavascriptInterface(KsuWebInterface(this@WebUIActivity, this, pluginDir), "ksu")
+            addJavascriptInterface(
+                KsuWebInterface(this@WebUIActivity, this, pluginDir).also { ksuInterface = it },
+                "ksu"
+            )
 
             webChromeClient = object : WebChromeClient() {
                 override fun onShowFileChooser(
@@ -393,6 +398,7 @@ class WebUIActivity : ComponentActivity() {
     }
 
     override fun onDestroy() {
+        ksuInterface?.destroy()
         webView.apply {
             stopLoading()
             removeAllViews()
@@ -5,7 +5,7 @@ import android.text.TextUtils
 import android.webkit.JavascriptInterface
 import android.widget.Toast
 import com.google.gson.Gson
-import frb.axeron.api.AxeronPluginService
+import frb.axeron.manager.ui.webui.PluginShellPool
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.runBlocking
 import org.json.JSONObject
@@ -18,6 +18,8 @@ class AxWebInterface(
     val PLUGINBIN: String
         get() = "${modDir}/system/bin"
 
+    private val shellPool = PluginShellPool.forPlugin(modDir)
+
     private fun processOptions(sb: StringBuilder, options: String?) {
         val opts = if (options == null) JSONObject() else {
             JSONObject(options)
@@ -44,11 +46,7 @@ class AxWebInterface(
         finalCommand.append(command)
 
         return runBlocking(Dispatchers.IO) {
-            val result = AxeronPluginService.execWithIO(
-                cmd = finalCommand.toString(),
-                useBusybox = false,
-                hideStderr = false
-            )
+            val result = shellPool.exec(finalCommand.toString())
             Gson().toJson(result).toString()
         }
     }
@@ -11,6 +11,7 @@ import android.os.Handler
 import android.os.Looper
 import android.text.TextUtils
 import android.util.Base64
+import android.util.Log
 import android.view.Window
 import android.webkit.JavascriptInterface
 import android.webkit.WebView
@@ -22,15 +23,27 @@ import androidx.core.view.WindowInsetsControllerCompat
 import com.google.gson.GsonBuilder
 import com.google.gson.ToNumberPolicy
 import frb.axeron.api.Axeron
-import frb.axeron.api.AxeronPluginService
+import frb.axeron.manager.ui.util.InstalledPackages
+import frb.axeron.manager.ui.webui.JsCallbackChannel
+import frb.axeron.manager.ui.webui.PluginShellPool
+import frb.axeron.manager.ui.webui.ProcessWatcher
+import frb.axeron.manager.ui.webui.SpawnOutputChannel
 import frb.axeron.server.util.flattenOneLevel
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineExceptionHandler
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asExecutor
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import org.json.JSONArray
 import org.json.JSONObject
 import java.io.ByteArrayOutputStream
 import java.io.File
-import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Unrooted by FahrezONE
@@ -44,15 +57,32 @@ class KsuWebInterface(
     val pluginBin: String
         get() = "${modDir.absolutePath}/system/bin"
 
+    private val shellPool = PluginShellPool.forPlugin(modDir)
+
+    private val callbacks = JsCallbackChannel(webView)
+
+    private val dispatcher = Dispatchers.IO.limitedParallelism(MAX_CONCURRENT_CALLS)
+
+    private val scope = CoroutineScope(
+        SupervisorJob() + dispatcher + CoroutineExceptionHandler { _, e ->
+            Log.e(TAG, "bridge call failed", e)
+        }
+    )
+
+    private val nextRequestId = AtomicInteger()
+
+    private val runningProcesses: MutableSet<ProcessWatcher> = ConcurrentHashMap.newKeySet()
+
+    companion object {
+        private const val TAG = "KsuWebInterface"
+        private const val MAX_CONCURRENT_CALLS = 4
+    }
+
     @JavascriptInterface
     fun exec(cmd: String): String {
         return runCatching {
             runBlocking(Dispatchers.IO) {
-                val result = AxeronPluginService.execWithIO(
-                    cmd = cmd,
-                    useBusybox = false,
-                    hideStderr = false
-                )
+                val result = shellPool.exec(cmd)
                 if (result.err.isNotBlank()) "${result.out}\n${result.err}" else result.out
             }
         }.getOrElse {
@@ -62,8 +92,8 @@ class KsuWebInterface(
 
 
     @JavascriptInterface
-    fun exec(cmd: String, callbackFunc: String) {
-        exec(cmd, null, callbackFunc)
+    fun exec(cmd: String, callbackFunc: String): Int {
+        return exec(cmd, null, callbackFunc)
     }
 
     private fun processOptions(sb: StringBuilder, options: String?) {
@@ -84,114 +114,114 @@ class KsuWebInterface(
         }
     }
 
+    /**
+     * Returns a request id right away; [callbackFunc] is invoked through [callbacks] once
+     * the command has finished on [dispatcher].
+     */
     @JavascriptInterface
     fun exec(
         cmd: String,
         options: String?,
         callbackFunc: String
-    ) {
-        runBlocking(Dispatchers.IO) {
-            val finalCommand = buildString {
-                processOptions(this, options)
-                append(cmd)
+    ): Int {
+        val requestId = nextRequestId.incrementAndGet()
+        scope.launch {
+            val result = try {
+                val finalCommand = buildString {
+                    processOptions(this, options)
+                    append(cmd)
+                }
+                shellPool.exec(finalCommand)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                // the page is waiting on the callback, a failure has to reach it too
+                Log.e(TAG, "exec failed", e)
+                PluginShellPool.Result(1, "", e.toString())
             }
-//            val finalCommand = StringBuilder()
-//            processOptions(finalCommand, options)
-//            finalCommand.append(cmd)
-
-            val result = AxeronPluginService.execWithIO(
-                cmd = finalCommand,
-                useBusybox = false,
-                hideStderr = false
-            )
 
-            val jsCode =
+            callbacks.post(
                 "(function() { try { ${callbackFunc}(${result.code}, ${
                     JSONObject.quote(
                         result.out
                     )
                 }, ${JSONObject.quote(result.err)}); } catch(e) { console.error(e); } })();"
-            webView.post {
-                webView.evaluateJavascript(jsCode, null)
-            }
+            )
         }
+        return requestId
     }
 
+    /**
+     * Returns a request id right away. The process is started on [dispatcher]; its output
+     * is read by [ProcessWatcher], so no thread waits on it while it runs, and reaches the
+     * page in frames through [SpawnOutputChannel].
+     */
     @JavascriptInterface
-    fun spawn(command: String, args: String, options: String?, callbackFunc: String) {
-        runBlocking(Dispatchers.IO) {
-            val finalCommand = buildString {
-                processOptions(this, options)
-
-                if (!TextUtils.isEmpty(args)) {
-                    append(command).append(" ")
-                    JSONArray(args).let { argsArray ->
-                        for (i in 0 until argsArray.length()) {
-                            append(argsArray.getString(i))
-                            append(" ")
-                        }
-                    }
-                } else {
-                    append(command)
-                }
+    fun spawn(command: String, args: String, options: String?, callbackFunc: String): Int {
+        val requestId = nextRequestId.incrementAndGet()
+        scope.launch {
+            try {
+                startSpawn(command, args, options, callbackFunc)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.e(TAG, "spawn failed", e)
+                emitSpawnError(callbackFunc, e)
             }
+        }
+        return requestId
+    }
+
+    private fun startSpawn(command: String, args: String, options: String?, callbackFunc: String) {
+        val finalCommand = buildString {
+            processOptions(this, options)
 
-//            val finalCommand = StringBuilder()
-//            processOptions(finalCommand, options)
-//            if (!TextUtils.isEmpty(args)) {
-//                finalCommand.append(command).append(" ")
-//                JSONArray(args).let { argsArray ->
-//                    for (i in 0 until argsArray.length()) {
-//                        finalCommand.append(argsArray.getString(i)).append(" ")
-//                    }
-//                }
-//            } else {
-//                finalCommand.append(command)
-//            }
-
-            val emitData = fun(name: String, data: String) {
-                val jsCode =
-                    "(function() { try { ${callbackFunc}.${name}.emit('data', ${
-                        JSONObject.quote(
-                            data
-                        )
-                    }); } catch(e) { console.error('emitData', e); } })();"
-                webView.post {
-                    webView.evaluateJavascript(jsCode, null)
+            if (!TextUtils.isEmpty(args)) {
+                append(command).append(" ")
+                JSONArray(args).let { argsArray ->
+                    for (i in 0 until argsArray.length()) {
+                        append(argsArray.getString(i))
+                        append(" ")
+                    }
                 }
+            } else {
+                append(command)
             }
+        }
 
-            val future = AxeronPluginService.execWithIOFuture(
-                cmd = finalCommand,
-                onStdout = { emitData("stdout", it) },
-                onStderr = { emitData("stderr", it) },
-                useBusybox = false,
-                hideStderr = false
-            )
-            val completableFuture = CompletableFuture.supplyAsync {
-                future.get()
+        val process = Axeron.newProcess(arrayOf("sh", "-c", finalCommand), null, null)
+
+        val output = SpawnOutputChannel(webView, callbackFunc)
+        lateinit var watcher: ProcessWatcher
+        watcher = ProcessWatcher(
+            process,
+            dispatcher.asExecutor(),
+            onLine = output::onLine,
+            onExit = { code, stderr ->
+                runningProcesses.remove(watcher)
+                output.onExit(code, stderr)
             }
+        )
+        output.watcher = watcher
+        runningProcesses.add(watcher)
+        watcher.start()
+    }
 
-            completableFuture.thenAccept { result ->
-                val emitExitCode =
-                    "(function() { try { ${callbackFunc}.emit('exit', ${result.code}); } catch(e) { console.error(`emitExit error: \${e}`); } })();"
-                webView.post {
-                    webView.evaluateJavascript(emitExitCode, null)
-                }
+    private fun emitSpawnError(callbackFunc: String, e: Exception) {
+        callbacks.post(
+            "(function() { try { var err = new Error(); err.exitCode = -1; err.message = ${
+                JSONObject.quote(e.toString())
+            };${callbackFunc}.emit('error', err); } catch(e) { console.error('emitErr', e); } })();"
+        )
+    }
 
-                if (result.code != 0) {
-                    val emitErrCode =
-                        "(function() { try { var err = new Error(); err.exitCode = ${result.code}; err.message = ${
-                            JSONObject.quote(
-                                result.err + "\n"
-                            )
-                        };${callbackFunc}.emit('error', err); } catch(e) { console.error('emitErr', e); } })();"
-                    webView.post {
-                        webView.evaluateJavascript(emitErrCode, null)
-                    }
-                }
-            }
-        }
+    /**
+     * Cancels queued calls and stops processes spawned by this page.
+     */
+    fun destroy() {
+        scope.cancel()
+        runningProcesses.forEach { it.destroy() }
+        runningProcesses.clear()
     }
 
     @JavascriptInterface
@@ -239,7 +269,7 @@ class KsuWebInterface(
 
     @JavascriptInterface
     fun listPackages(type: String): String {
-        val packageNames = Axeron.getPackages(0)
+        val packageNames = InstalledPackages.get(0)
             .filter { packageInfo ->
                 val flags = packageInfo.applicationInfo?.flags ?: 0
                 when (type.lowercase()) {
@@ -261,7 +291,7 @@ class KsuWebInterface(
     @JavascriptInterface
     fun listSystemPackages(): String {
 //        val pm = context.packageManager
-        val packages = Axeron.getPackages(0).mapNotNull { pkg ->
+        val packages = InstalledPackages.get(0).mapNotNull { pkg ->
             val appInfo = pkg.applicationInfo
             if (appInfo != null && (appInfo.flags and ApplicationInfo.FLAG_SYSTEM) != 0) {
                 pkg.packageName
@@ -278,7 +308,7 @@ class KsuWebInterface(
     @JavascriptInterface
     fun listUserPackages(): String {
 //        val pm = context.packageManager
-        val packages = Axeron.getPackages(0)
+        val packages = InstalledPackages.get(0)
             .mapNotNull { pkg ->
                 val appInfo = pkg.applicationInfo
                 if (appInfo != null && (appInfo.flags and ApplicationInfo.FLAG_SYSTEM) == 0) {
@@ -296,7 +326,7 @@ class KsuWebInterface(
     @JavascriptInterface
     fun listAllPackages(): String {
 //        val pm = context.packageManager
-        val packages = Axeron.getPackages(0)
+        val packages = InstalledPackages.get(0)
             .map { it.packageName }.sorted()
         val jsonArray = JSONArray()
         for (pkgName in packages) {
@@ -310,7 +340,7 @@ class KsuWebInterface(
         val pm = context.packageManager
         val packageNames = JSONArray(packageNamesJson)
         val jsonArray = JSONArray()
-        val appMap = Axeron.getPackages(0).associateBy { it.packageName }
+        val appMap = InstalledPackages.get(0).associateBy { it.packageName }
         for (i in 0 until packageNames.length()) {
             val pkgName = packageNames.getString(i)
             val appInfo = appMap[pkgName]
@@ -339,7 +369,7 @@ class KsuWebInterface(
     @JavascriptInterface
     fun cacheAllPackageIcons(size: Int) {
         val pm = context.packageManager
-        val packages = Axeron.getPackages(0)
+        val packages = InstalledPackages.get(0)
         val outputStream = ByteArrayOutputStream()
         for (pkg in packages) {
             val pkgName = pkg.packageName
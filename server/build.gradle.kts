@@ -10,6 +10,7 @@ android {
 
     defaultConfig {
         consumerProguardFiles("consumer-rules.pro")
+        testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
         externalNativeBuild {
             cmake {
                 arguments += "-DANDROID_STL=none"
@@ -37,6 +38,11 @@ android {
         buildConfig = true
         prefab = true
     }
+
+    testOptions {
+        // the route constructor logs, let android.util.Log be a no-op on the jvm
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -64,4 +70,8 @@ dependencies {
     implementation(project(":rish"))
     implementation(project(":server-shared"))
     compileOnly(project(":server:stub"))
+
+    testImplementation(libs.junit)
+    androidTestImplementation(libs.androidx.junit)
+    androidTestImplementation(libs.androidx.espresso.core)
 }
\ No newline at end of file
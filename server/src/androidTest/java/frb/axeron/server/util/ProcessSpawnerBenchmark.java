@@ -0,0 +1,101 @@
+package frb.axeron.server.util;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares {@link Runtime#exec(String[])} with {@link ProcessSpawner} at a fixed rate.
+ * The helper comes from the native libraries of the test apk.
+ * <pre>
+ * ./gradlew :server:connectedAndroidTest \
+ *     -Pandroid.testInstrumentationRunnerArguments.class=frb.axeron.server.util.ProcessSpawnerBenchmark
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProcessSpawnerBenchmark {
+
+    private static final String TAG = "ProcessSpawnerBenchmark";
+
+    private static final int COUNT = 1000;
+    private static final int RATE = 100;
+
+    private boolean wasEnabled;
+
+    @Before
+    public void setUp() {
+        System.setProperty("axeron.library.path", InstrumentationRegistry.getInstrumentation()
+                .getTargetContext().getApplicationInfo().nativeLibraryDir);
+        wasEnabled = ProcessSpawner.isEnabled();
+    }
+
+    @After
+    public void tearDown() {
+        ProcessSpawner.setEnabled(wasEnabled);
+    }
+
+    @Test
+    public void compare() throws Exception {
+        ProcessSpawner.setEnabled(false);
+        run("Runtime.exec", COUNT, RATE);
+        ProcessSpawner.setEnabled(true);
+        run("ProcessSpawner", COUNT, RATE);
+    }
+
+    private static void run(String name, int count, int rate) throws Exception {
+        String[] cmd = {"/system/bin/true"};
+        // warm up, and let the spawner start outside the measurement
+        ProcessSpawner.exec(cmd, null, null).waitFor();
+
+        long rssBefore = rssKb();
+        long[] latencies = new long[count];
+        long interval = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long due = start + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+
+            long begin = System.nanoTime();
+            Process process = ProcessSpawner.exec(cmd, null, null);
+            latencies[i] = System.nanoTime() - begin;
+            process.getOutputStream().close();
+            process.waitFor();
+            process.getInputStream().close();
+            process.getErrorStream().close();
+        }
+        long rssAfter = rssKb();
+
+        Arrays.sort(latencies);
+        Log.i(TAG, String.format(Locale.ROOT, "%-15s spawn p50 %6d us, p99 %6d us, max %6d us, RSS %d -> %d kB",
+                name,
+                latencies[count / 2] / 1000,
+                latencies[(int) (count * 0.99)] / 1000,
+                latencies[count - 1] / 1000,
+                rssBefore, rssAfter));
+    }
+
+    private static long rssKb() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Small process spawner used by the server instead of forking its own (large) process for
+ * every newProcess call.
+ *
+ * The server starts this helper once with the name of an abstract unix socket. The helper
+ * listens on it, prints "ready", accepts exactly one connection from its own uid and then
+ * serves spawn requests until the connection is closed.
+ *
+ * All integers are big endian.
+ *   request: int length, then: int id, int argc, argc * str, int envc (-1 inherits), envc * str,
+ *            str dir (length -1 for none); three fds (stdin, stdout, stderr) in SCM_RIGHTS
+ *   replies: int MSG_SPAWNED, int id, int pid (or -errno)
+ *            int MSG_EXITED, int pid, int exit value (128 + signal when killed)
+ *   str:     int length, length bytes of UTF-8
+ */
+
+#include <cerrno>
+#include <cstddef>
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <fcntl.h>
+#include <poll.h>
+#include <signal.h>
+#include <unistd.h>
+#include <arpa/inet.h>
+#include <sys/signalfd.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <sys/wait.h>
+
+#define LOG_TAG "AxeronSpawner"
+
+#include "logging.h"
+
+#define MSG_SPAWNED 1
+#define MSG_EXITED 2
+
+#define MAX_REQUEST_SIZE (1024 * 1024)
+#define MAX_ITEMS 4096
+
+extern char **environ;
+
+static int read_fully(int fd, void *buf, size_t size) {
+    auto *p = static_cast<uint8_t *>(buf);
+    while (size > 0) {
+        ssize_t n = read(fd, p, size);
+        if (n < 0 && errno == EINTR) continue;
+        if (n <= 0) return -1;
+        p += n;
+        size -= n;
+    }
+    return 0;
+}
+
+static int write_fully(int fd, const void *buf, size_t size) {
+    auto *p = static_cast<const uint8_t *>(buf);
+    while (size > 0) {
+        ssize_t n = write(fd, p, size);
+        if (n < 0 && errno == EINTR) continue;
+        if (n <= 0) return -1;
+        p += n;
+        size -= n;
+    }
+    return 0;
+}
+
+static int send_message(int fd, int32_t type, int32_t a, int32_t b) {
+    uint32_t buf[3] = {htonl(type), htonl(a), htonl(b)};
+    return write_fully(fd, buf, sizeof(buf));
+}
+
+/*
+ * Reads the length prefix together with the fds sent along with the request.
+ */
+static int recv_header(int fd, uint32_t *length, int fds[3]) {
+    char control[CMSG_SPACE(sizeof(int) * 3)];
+    uint32_t raw;
+    iovec iov{&raw, sizeof(raw)};
+    msghdr msg{};
+    msg.msg_iov = &iov;
+    msg.msg_iovlen = 1;
+    msg.msg_control = control;
+    msg.msg_controllen = sizeof(control);
+
+    ssize_t n;
+    do {
+        n = recvmsg(fd, &msg, MSG_CMSG_CLOEXEC);
+    } while (n < 0 && errno == EINTR);
+    if (n <= 0) return -1;
+
+    fds[0] = fds[1] = fds[2] = -1;
+    for (cmsghdr *cmsg = CMSG_FIRSTHDR(&msg); cmsg; cmsg = CMSG_NXTHDR(&msg, cmsg)) {
+        if (cmsg->cmsg_level != SOL_SOCKET || cmsg->cmsg_type != SCM_RIGHTS) continue;
+        size_t count = (cmsg->cmsg_len - CMSG_LEN(0)) / sizeof(int);
+        if (count > 3) count = 3;
+        memcpy(fds, CMSG_DATA(cmsg), count * sizeof(int));
+    }
+
+    if (n < (ssize_t) sizeof(raw)
+        && read_fully(fd, reinterpret_cast<uint8_t *>(&raw) + n, sizeof(raw) - n)) {
+        return -1;
+    }
+    *length = ntohl(raw);
+    return 0;
+}
+
+struct reader {
+    const uint8_t *p;
+    const uint8_t *end;
+    bool failed;
+
+    int32_t next_int() {
+        if (end - p < 4) {
+            failed = true;
+            return 0;
+        }
+        uint32_t v;
+        memcpy(&v, p, 4);
+        p += 4;
+        return (int32_t) ntohl(v);
+    }
+
+    // strings are copied out so they can be NUL terminated
+    char *next_str() {
+        int32_t length = next_int();
+        if (failed || length < 0) return nullptr;
+        if (end - p < length) {
+            failed = true;
+            return nullptr;
+        }
+        char *s = static_cast<char *>(malloc(length + 1));
+        memcpy(s, p, length);
+        s[length] = '\0';
+        p += length;
+        return s;
+    }
+
+    char **next_str_array(int32_t count) {
+        if (failed || count < 0 || count > MAX_ITEMS) {
+            failed = true;
+            return nullptr;
+        }
+        auto **array = static_cast<char **>(calloc(count + 1, sizeof(char *)));
+        for (int32_t i = 0; i < count && !failed; i++) {
+            array[i] = next_str();
+        }
+        return array;
+    }
+};
+
+static void free_str_array(char **array) {
+    if (!array) return;
+    for (char **it = array; *it; it++) free(*it);
+    free(array);
+}
+
+static pid_t spawn(char **argv, char **envp, const char *dir, const int fds[3], int *error) {
+    sigset_t empty;
+    sigemptyset(&empty);
+
+    // written by the child before it exits; vfork shares our memory until then
+    volatile int child_errno = 0;
+
+    pid_t pid = vfork();
+    if (pid == 0) {
+        for (int i = 0; i < 3; i++) {
+            if (dup2(fds[i], i) == -1) {
+                child_errno = errno;
+                _exit(127);
+            }
+        }
+        if (dir && chdir(dir) == -1) {
+            child_errno = errno;
+            _exit(127);
+        }
+        sigprocmask(SIG_SETMASK, &empty, nullptr);
+        signal(SIGPIPE, SIG_DFL);
+        execvpe(argv[0], argv, envp);
+        child_errno = errno;
+        _exit(127);
+    }
+
+    if (pid == -1) {
+        *error = errno;
+        return -1;
+    }
+    if (child_errno != 0) {
+        // the child never reached the new program; reap it here so it is not reported
+        waitpid(pid, nullptr, 0);
+        *error = child_errno;
+        return -1;
+    }
+    return pid;
+}
+
+static int handle_request(int conn) {
+    uint32_t length;
+    int fds[3];
+    if (recv_header(conn, &length, fds)) return -1;
+
+    int32_t id;
+    int32_t result;
+    char **argv = nullptr;
+    char **envp = nullptr;
+    char *dir = nullptr;
+
+    // the payload is not read in either case, so the stream cannot be resynchronised
+    if (length > MAX_REQUEST_SIZE) {
+        LOGE("request too large: %u", length);
+        for (int fd: fds) if (fd != -1) close(fd);
+        return -1;
+    }
+    auto *buf = static_cast<uint8_t *>(malloc(length ? length : 1));
+    if (!buf) {
+        LOGE("out of memory for request of %u bytes", length);
+        for (int fd: fds) if (fd != -1) close(fd);
+        return -1;
+    }
+
+    if (read_fully(conn, buf, length)) {
+        free(buf);
+        for (int fd: fds) if (fd != -1) close(fd);
+        return -1;
+    }
+
+    {
+        reader r{buf, buf + length, false};
+        id = r.next_int();
+        argv = r.next_str_array(r.next_int());
+        int32_t envc = r.next_int();
+        if (envc != -1) envp = r.next_str_array(envc);
+        dir = r.next_str();
+
+        if (r.failed || !argv || !argv[0] || fds[0] == -1 || fds[1] == -1 || fds[2] == -1) {
+            LOGE("malformed request %d", id);
+            result = -EINVAL;
+        } else {
+            int error = 0;
+            pid_t pid = spawn(argv, envp ? envp : environ, dir, fds, &error);
+            result = pid == -1 ? -error : pid;
+        }
+    }
+
+    free_str_array(argv);
+    free_str_array(envp);
+    free(dir);
+    free(buf);
+
+    for (int fd: fds) if (fd != -1) close(fd);
+    return send_message(conn, MSG_SPAWNED, id, result);
+}
+
+static int report_exited(int conn) {
+    int status;
+    pid_t pid;
+    while ((pid = waitpid(-1, &status, WNOHANG)) > 0) {
+        int32_t value;
+        if (WIFEXITED(status)) {
+            value = WEXITSTATUS(status);
+        } else if (WIFSIGNALED(status)) {
+            value = 0x80 + WTERMSIG(status);
+        } else {
+            continue;
+        }
+        if (send_message(conn, MSG_EXITED, pid, value)) return -1;
+    }
+    return 0;
+}
+
+static int accept_server(const char *name) {
+    int server = socket(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
+    if (server == -1) {
+        PLOGE("socket");
+        return -1;
+    }
+
+    sockaddr_un addr{};
+    addr.sun_family = AF_UNIX;
+    size_t name_length = strlen(name);
+    if (name_length + 1 > sizeof(addr.sun_path)) {
+        LOGE("socket name too long");
+        close(server);
+        return -1;
+    }
+    // abstract namespace: leading NUL, no terminator
+    memcpy(addr.sun_path + 1, name, name_length);
+    socklen_t addr_length = offsetof(sockaddr_un, sun_path) + 1 + name_length;
+
+    if (bind(server, reinterpret_cast<sockaddr *>(&addr), addr_length) == -1
+        || listen(server, 1) == -1) {
+        PLOGE("bind %s", name);
+        close(server);
+        return -1;
+    }
+
+    printf("ready\n");
+    fflush(stdout);
+
+    int conn;
+    do {
+        conn = accept4(server, nullptr, nullptr, SOCK_CLOEXEC);
+    } while (conn == -1 && errno == EINTR);
+    close(server);
+    if (conn == -1) {
+        PLOGE("accept");
+        return -1;
+    }
+
+    ucred cred{};
+    socklen_t cred_length = sizeof(cred);
+    if (getsockopt(conn, SOL_SOCKET, SO_PEERCRED, &cred, &cred_length) == -1
+        || cred.uid != getuid() || cred.pid != getppid()) {
+        LOGE("rejected connection from uid %d pid %d", cred.uid, cred.pid);
+        close(conn);
+        return -1;
+    }
+    return conn;
+}
+
+int main(int argc, char *argv[]) {
+    if (argc < 2) {
+        fprintf(stderr, "usage: %s <socket name>\n", argv[0]);
+        return 1;
+    }
+
+    sigset_t mask;
+    sigemptyset(&mask);
+    sigaddset(&mask, SIGCHLD);
+    sigprocmask(SIG_BLOCK, &mask, nullptr);
+    signal(SIGPIPE, SIG_IGN);
+
+    int sfd = signalfd(-1, &mask, SFD_CLOEXEC | SFD_NONBLOCK);
+    if (sfd == -1) {
+        PLOGE("signalfd");
+        return 1;
+    }
+
+    int conn = accept_server(argv[1]);
+    if (conn == -1) return 1;
+
+    // the server stops reading our pipes once we are connected
+    int null_fd = open("/dev/null", O_RDWR);
+    if (null_fd != -1) {
+        dup2(null_fd, STDIN_FILENO);
+        dup2(null_fd, STDOUT_FILENO);
+        dup2(null_fd, STDERR_FILENO);
+        if (null_fd > STDERR_FILENO) close(null_fd);
+    }
+
+    LOGI("spawner %d ready", getpid());
+
+    pollfd fds[2] = {{conn, POLLIN, 0},
+                     {sfd,  POLLIN, 0}};
+    while (true) {
+        if (poll(fds, 2, -1) == -1) {
+            if (errno == EINTR) continue;
+            PLOGE("poll");
+            break;
+        }
+        if (fds[1].revents & POLLIN) {
+            signalfd_siginfo info{};
+            while (read(sfd, &info, sizeof(info)) == sizeof(info)) {}
+            if (report_exited(conn)) break;
+        }
+        if (fds[0].revents & POLLIN) {
+            if (handle_request(conn)) break;
+        } else if (fds[0].revents & (POLLHUP | POLLERR)) {
+            break;
+        }
+    }
+
+    LOGI("spawner %d exiting", getpid());
+    return 0;
+}
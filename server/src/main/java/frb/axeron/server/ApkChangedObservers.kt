@@ -4,107 +4,113 @@ import android.os.Build
 import android.os.FileObserver
 import android.os.Handler
 import android.util.Log
-import androidx.annotation.RequiresApi
 import java.io.File
-import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArraySet
 
 fun interface ApkChangedListener {
     fun onApkChanged()
 }
 
-private val observers = ConcurrentHashMap<String, ApkChangedObserver>()
-
+/**
+ * Watches the install directories of user service packages.
+ *
+ * All [FileObserver]s share the one inotify fd and thread of the framework, which keeps a
+ * watch descriptor to observer index, so every event is dispatched in O(1) to the single
+ * [DirectoryWatch] of its directory. One directory watch serves every listener of that
+ * package and stays active across events; a burst of events for the apk (an upgrade
+ * writes, renames and deletes several times) is collapsed into one callback after
+ * [DEBOUNCE_MS]. Each listener is indexed to its watch, so [stop] does not scan.
+ */
 object ApkChangedObservers {
 
+    private const val DEBOUNCE_MS = 500L
+
+    private val lock = Any()
+    private val watches = HashMap<String, DirectoryWatch>()
+    private val watchOfListener = HashMap<ApkChangedListener, DirectoryWatch>()
+
     @JvmStatic
     fun start(apkPath: String, mainHandler: Handler, listener: ApkChangedListener) {
         // inotify watchs inode, if the there are still processes holds the file, DELTE_SELF will not be triggered
         // so we need to watch the parent folder
-
-        val path = File(apkPath)
-        val observer = observers.getOrPut(path.parent) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                ApkChangedObserver(mainHandler, path).apply {
-                    startWatching()
-                }
-            } else {
-                ApkChangedObserver(mainHandler, path.parent).apply {
-                    startWatching()
-                }
+        val apk = File(apkPath)
+        val dir = apk.parentFile ?: throw IllegalArgumentException("no parent for $apkPath")
+
+        synchronized(lock) {
+            val current = watchOfListener[listener]
+            if (current != null) {
+                if (current.dir == dir) return
+                detachLocked(listener, current)
             }
+            val watch = watches.getOrPut(dir.path) {
+                DirectoryWatch(dir, apk.name, mainHandler).apply { startWatching() }
+            }
+            watch.listeners.add(listener)
+            watchOfListener[listener] = watch
         }
-        observer.addListener(listener)
     }
 
     @JvmStatic
     fun stop(listener: ApkChangedListener) {
-        observers.entries.removeIf { (_, observer) ->
-            observer.removeListener(listener)
-            if (!observer.hasListeners()) {
-                observer.stopWatching()
-                true
-            } else false
+        synchronized(lock) {
+            val watch = watchOfListener[listener] ?: return
+            detachLocked(listener, watch)
         }
     }
 
-}
-
-class ApkChangedObserver : FileObserver {
-
-    private val path: File
-    private val handler: Handler
-    private val listeners: CopyOnWriteArraySet<ApkChangedListener>
-
-    @RequiresApi(Build.VERSION_CODES.Q)
-    constructor(mainHandler: Handler, path: File) : super(path, DELETE or DELETE_SELF or MOVE_SELF or CLOSE_WRITE) {
-        this.path = path
-        this.handler = mainHandler
-        this.listeners = CopyOnWriteArraySet<ApkChangedListener>()
+    private fun detachLocked(listener: ApkChangedListener, watch: DirectoryWatch) {
+        watchOfListener.remove(listener)
+        watch.listeners.remove(listener)
+        if (watch.listeners.isEmpty()) {
+            watches.remove(watch.dir.path)
+            watch.stopWatching()
+        }
     }
 
-    @Suppress("DEPRECATION")
-    constructor(mainHandler: Handler, path: String?) : super(path, DELETE or DELETE_SELF or MOVE_SELF or CLOSE_WRITE) {
-        if (path == null) throw IllegalArgumentException("path cannot be null")
-        this.path = File(path)
-        this.handler = mainHandler
-        this.listeners = CopyOnWriteArraySet<ApkChangedListener>()
-    }
+    private class DirectoryWatch(
+        val dir: File,
+        private val apkName: String,
+        private val handler: Handler
+    ) {
+        val listeners = CopyOnWriteArraySet<ApkChangedListener>()
 
-    fun addListener(listener: ApkChangedListener): Boolean {
-        return listeners.add(listener)
-    }
-
-    fun removeListener(listener: ApkChangedListener): Boolean {
-        return listeners.remove(listener)
-    }
+        private val dispatch = Runnable {
+            listeners.forEach { it.onApkChanged() }
+        }
 
-    fun hasListeners(): Boolean {
-        return listeners.isNotEmpty()
-    }
+        private val observer: FileObserver =
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                object : FileObserver(dir, MASK) {
+                    override fun onEvent(event: Int, path: String?) = onDirectoryEvent(path)
+                }
+            } else {
+                @Suppress("DEPRECATION")
+                object : FileObserver(dir.path, MASK) {
+                    override fun onEvent(event: Int, path: String?) = onDirectoryEvent(path)
+                }
+            }
 
-    @Volatile
-    private var active = true
+        private fun onDirectoryEvent(path: String?) {
+            if (path != apkName) return
+            handler.removeCallbacks(dispatch)
+            handler.postDelayed(dispatch, DEBOUNCE_MS)
+        }
 
-    override fun onEvent(event: Int, path: String?) {
-        if (!active || path == null) return
-        if (path == "base.apk") {
-            active = false
-            handler.post {
-                stopWatching()
-                listeners.forEach { it.onApkChanged() }
-            }
+        fun startWatching() {
+            observer.startWatching()
+            Log.d("AxeronServer", "start watching $dir")
         }
-    }
 
-    override fun startWatching() {
-        super.startWatching()
-        Log.d("AxeronServer", "start watching $path")
-    }
+        fun stopWatching() {
+            observer.stopWatching()
+            handler.removeCallbacks(dispatch)
+            Log.d("AxeronServer", "stop watching $dir")
+        }
 
-    override fun stopWatching() {
-        super.stopWatching()
-        Log.d("AxeronServer", "stop watching $path")
+        companion object {
+            private const val MASK = FileObserver.DELETE or FileObserver.DELETE_SELF or
+                    FileObserver.MOVE_SELF or FileObserver.MOVED_FROM or FileObserver.CLOSE_WRITE
+        }
     }
 }
 
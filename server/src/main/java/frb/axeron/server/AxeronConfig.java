@@ -5,7 +5,9 @@ import androidx.annotation.NonNull;
 import com.google.gson.annotations.SerializedName;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class AxeronConfig {
 
@@ -17,6 +19,13 @@ public class AxeronConfig {
     @SerializedName("packages")
     public List<PackageEntry> packages = new ArrayList<>();
 
+    /**
+     * userId -> fingerprint of the installed package set (names, version codes and update
+     * times) seen by the last reconciliation.
+     */
+    @SerializedName("fingerprints")
+    public Map<Integer, Long> fingerprints = new HashMap<>();
+
     public AxeronConfig() {
     }
 
@@ -42,6 +51,12 @@ public class AxeronConfig {
             this.packages = new ArrayList<>();
         }
 
+        public PackageEntry(int uid, int flags, List<String> packages) {
+            this.uid = uid;
+            this.flags = flags;
+            this.packages = packages;
+        }
+
         @Override
         public boolean isAllowed() {
             return (flags & ConfigManager.FLAG_ALLOWED) != 0;
@@ -0,0 +1,186 @@
+package frb.axeron.server;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk encoding of {@link AxeronConfig}. Both formats stream directly from and to the
+ * given stream without building the whole document in memory.
+ */
+public interface AxeronConfigFormat {
+
+    AxeronConfigFormat JSON = new Json();
+
+    AxeronConfigFormat BINARY = new Binary();
+
+    @NonNull
+    AxeronConfig read(@NonNull InputStream in) throws IOException;
+
+    /**
+     * Writes and flushes {@code config}. The stream is left open so the caller can sync
+     * and close it.
+     */
+    void write(@NonNull AxeronConfig config, @NonNull OutputStream out) throws IOException;
+
+    /**
+     * The format used before the binary one was introduced.
+     */
+    final class Json implements AxeronConfigFormat {
+
+        private static final Gson GSON_IN = new GsonBuilder()
+                .create();
+        private static final Gson GSON_OUT = new GsonBuilder()
+                .setVersion(AxeronConfig.LATEST_VERSION)
+                .create();
+
+        private Json() {
+        }
+
+        @NonNull
+        @Override
+        public AxeronConfig read(@NonNull InputStream in) throws IOException {
+            AxeronConfig config = GSON_IN.fromJson(
+                    new InputStreamReader(in, StandardCharsets.UTF_8), AxeronConfig.class);
+            if (config == null) throw new IOException("empty config");
+            return config;
+        }
+
+        @Override
+        public void write(@NonNull AxeronConfig config, @NonNull OutputStream out) throws IOException {
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                    new BufferedOutputStream(out), StandardCharsets.UTF_8));
+            GSON_OUT.toJson(config, AxeronConfig.class, writer);
+            writer.flush();
+        }
+    }
+
+    /**
+     * <pre>
+     * int    magic "AXPC"
+     * byte   format version
+     * int    config version
+     * int    entry count, then per entry: int uid, int flags, int n, n * UTF package
+     * int    fingerprint count, then per user: int userId, long fingerprint
+     * </pre>
+     */
+    final class Binary implements AxeronConfigFormat {
+
+        static final int MAGIC = 0x41585043; // "AXPC"
+        static final byte FORMAT_VERSION = 1;
+
+        private Binary() {
+        }
+
+        /**
+         * @return whether {@code in} starts with the binary magic; the stream is reset to
+         * where it was
+         */
+        static boolean matches(@NonNull BufferedInputStream in) throws IOException {
+            in.mark(4);
+            try {
+                int magic = 0;
+                for (int i = 0; i < 4; i++) {
+                    int b = in.read();
+                    if (b == -1) return false;
+                    magic = (magic << 8) | b;
+                }
+                return magic == MAGIC;
+            } finally {
+                in.reset();
+            }
+        }
+
+        @NonNull
+        @Override
+        public AxeronConfig read(@NonNull InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(
+                    in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+            if (data.readInt() != MAGIC) throw new IOException("bad magic");
+            byte formatVersion = data.readByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("unsupported format version " + formatVersion);
+            }
+
+            AxeronConfig config = new AxeronConfig();
+            config.version = data.readInt();
+
+            int entryCount = checkCount(data.readInt());
+            List<AxeronConfig.PackageEntry> entries = new ArrayList<>(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                AxeronConfig.PackageEntry entry =
+                        new AxeronConfig.PackageEntry(data.readInt(), data.readInt());
+                int packageCount = checkCount(data.readInt());
+                for (int j = 0; j < packageCount; j++) {
+                    entry.packages.add(data.readUTF());
+                }
+                entries.add(entry);
+            }
+            config.packages = entries;
+
+            int fingerprintCount = checkCount(data.readInt());
+            Map<Integer, Long> fingerprints = new HashMap<>(fingerprintCount * 2);
+            for (int i = 0; i < fingerprintCount; i++) {
+                fingerprints.put(data.readInt(), data.readLong());
+            }
+            config.fingerprints = fingerprints;
+            return config;
+        }
+
+        @Override
+        public void write(@NonNull AxeronConfig config, @NonNull OutputStream out) throws IOException {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(MAGIC);
+            data.writeByte(FORMAT_VERSION);
+            data.writeInt(config.version);
+
+            List<AxeronConfig.PackageEntry> entries = config.packages;
+            data.writeInt(entries != null ? entries.size() : 0);
+            if (entries != null) {
+                for (AxeronConfig.PackageEntry entry : entries) {
+                    data.writeInt(entry.uid);
+                    data.writeInt(entry.flags);
+                    List<String> packages = entry.packages;
+                    data.writeInt(packages != null ? packages.size() : 0);
+                    if (packages != null) {
+                        for (String packageName : packages) {
+                            data.writeUTF(packageName);
+                        }
+                    }
+                }
+            }
+
+            Map<Integer, Long> fingerprints = config.fingerprints;
+            data.writeInt(fingerprints != null ? fingerprints.size() : 0);
+            if (fingerprints != null) {
+                for (Map.Entry<Integer, Long> fingerprint : fingerprints.entrySet()) {
+                    data.writeInt(fingerprint.getKey());
+                    data.writeLong(fingerprint.getValue());
+                }
+            }
+            data.flush();
+        }
+
+        private static int checkCount(int count) throws IOException {
+            if (count < 0 || count > 1 << 20) throw new IOException("corrupt count " + count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package frb.axeron.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import frb.axeron.server.util.Logger;
+
+/**
+ * Append-only log of permission config mutations, kept next to the main config file.
+ * <p>
+ * Every mutation is appended and fsync'd before it is acknowledged, so it survives a
+ * crash that happens before the delayed full write. Once the main file has been written
+ * the journal is {@link #reset() reset}. Each record carries its length and a CRC, so a
+ * torn tail left behind by a crash mid-append is detected on replay and cut off, and new
+ * records are appended right after the last intact one.
+ */
+public class AxeronConfigJournal {
+
+    private static final Logger LOGGER = new Logger("AxeronConfigJournal");
+
+    private static final byte OP_UPDATE = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    public interface Replayer {
+        void update(int uid, @Nullable List<String> packages, int mask, int values);
+
+        void remove(int uid);
+    }
+
+    private final File file;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+    private final CRC32 crc = new CRC32();
+    private FileOutputStream stream;
+
+    public AxeronConfigJournal(@NonNull File file) {
+        this.file = file;
+    }
+
+    public synchronized void appendUpdate(int uid, @Nullable List<String> packages, int mask, int values) {
+        buffer.reset();
+        try {
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(OP_UPDATE);
+            out.writeInt(uid);
+            out.writeInt(mask);
+            out.writeInt(values);
+            if (packages == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(packages.size());
+                for (String packageName : packages) {
+                    out.writeUTF(packageName != null ? packageName : "");
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append();
+    }
+
+    public synchronized void appendRemove(int uid) {
+        buffer.reset();
+        try {
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(OP_REMOVE);
+            out.writeInt(uid);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append();
+    }
+
+    private void append() {
+        byte[] payload = buffer.toByteArray();
+        int length = payload.length;
+        crc.reset();
+        crc.update(payload, 0, length);
+        int checksum = (int) crc.getValue();
+        byte[] record = new byte[8 + length];
+        writeInt(record, 0, length);
+        writeInt(record, 4, checksum);
+        System.arraycopy(payload, 0, record, 8, length);
+
+        try {
+            if (stream == null) {
+                stream = new FileOutputStream(file, true);
+            }
+            stream.write(record);
+            stream.getFD().sync();
+        } catch (IOException e) {
+            LOGGER.w(e, "append to %s", file);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Applies every intact record in order and truncates the file after the last of them.
+     *
+     * @return the number of records replayed
+     */
+    public synchronized int replay(@NonNull Replayer replayer) {
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+
+        int count = 0;
+        long intact = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(fis))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    LOGGER.w("corrupt record length %d after %d records, stop", length, count);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    LOGGER.w("checksum mismatch after %d records, stop", count);
+                    break;
+                }
+                apply(payload, replayer);
+                count++;
+                intact += 8 + length;
+            }
+        } catch (EOFException e) {
+            LOGGER.w("truncated record after %d records, stop", count);
+        } catch (IOException e) {
+            LOGGER.w(e, "replay %s", file);
+        }
+
+        if (file.length() > intact) {
+            truncate(intact);
+        }
+        return count;
+    }
+
+    private void truncate(long length) {
+        LOGGER.w("dropping %d bytes after the last intact record of %s", file.length() - length, file);
+        closeQuietly();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.getChannel().truncate(length);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            LOGGER.w(e, "truncate %s", file);
+        }
+    }
+
+    private static void apply(byte[] payload, Replayer replayer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte op = in.readByte();
+        int uid = in.readInt();
+        switch (op) {
+            case OP_UPDATE: {
+                int mask = in.readInt();
+                int values = in.readInt();
+                int size = in.readInt();
+                List<String> packages = null;
+                if (size >= 0) {
+                    packages = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        packages.add(in.readUTF());
+                    }
+                }
+                replayer.update(uid, packages, mask, values);
+                break;
+            }
+            case OP_REMOVE:
+                replayer.remove(uid);
+                break;
+            default:
+                LOGGER.w("unknown op %d", op);
+        }
+    }
+
+    /**
+     * Drops every record. Call only after the main file reflects all of them.
+     */
+    public synchronized void reset() {
+        try {
+            if (stream != null) {
+                stream.getChannel().truncate(0);
+                stream.getFD().sync();
+            } else if (file.exists() && !file.delete()) {
+                LOGGER.w("failed to delete %s", file);
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "reset %s", file);
+            closeQuietly();
+            if (!file.delete()) {
+                LOGGER.w("failed to delete %s", file);
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        if (stream == null) return;
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+        stream = null;
+    }
+
+    private static void writeInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+}
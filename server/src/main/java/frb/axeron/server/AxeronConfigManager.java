@@ -5,26 +5,30 @@ import static frb.axeron.server.ServerConstants.PERMISSION;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.system.Os;
 import android.util.AtomicFile;
 
 import androidx.annotation.Nullable;
+import androidx.core.content.pm.PackageInfoCompat;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import frb.axeron.ktx.HandlerKt;
+import frb.axeron.server.util.IntHashIndex;
+import frb.axeron.server.util.UserHandleCompat;
 import frb.axeron.shared.AxeronApiConstant;
 import frb.axeron.shared.PathHelper;
 import kotlin.collections.ArraysKt;
@@ -33,26 +37,52 @@ import rikka.hidden.compat.UserManagerApis;
 
 public class AxeronConfigManager extends ConfigManager {
 
-    private static final Gson GSON_IN = new GsonBuilder()
-            .create();
-    private static final Gson GSON_OUT = new GsonBuilder()
-            .setVersion(AxeronConfig.LATEST_VERSION)
-            .create();
-
     private static final long WRITE_DELAY = 10 * 1000;
 
-    private static final File FILE = PathHelper.getWorkingPath(Os.getuid() == 0,AxeronApiConstant.folder.PARENT + "ax_permission.json");
+    private static final File FILE = PathHelper.getWorkingPath(Os.getuid() == 0,AxeronApiConstant.folder.PARENT + "ax_permission.bin");
     private static final AtomicFile ATOMIC_FILE = new AtomicFile(FILE);
+    // read once to migrate, removed after the first successful binary write
+    private static final File LEGACY_FILE = PathHelper.getWorkingPath(Os.getuid() == 0,AxeronApiConstant.folder.PARENT + "ax_permission.json");
+    private static final AtomicFile LEGACY_ATOMIC_FILE = new AtomicFile(LEGACY_FILE);
+    private static final File JOURNAL_FILE = PathHelper.getWorkingPath(Os.getuid() == 0,AxeronApiConstant.folder.PARENT + "ax_permission.journal");
     private final AxeronConfig config;
+    // uid -> entry view of config.packages, rebuilt under the lock on every change and read
+    // without locking by find(). Published entries are never changed: a change replaces the
+    // entry in config.packages with an updated copy, see replaceLocked()
+    private volatile IntHashIndex<AxeronConfig.PackageEntry> index = IntHashIndex.empty();
+    // update()/remove()/findOrUpdate() are made durable here right away; the main file
+    // catches up on the delayed write, which then compacts the journal
+    private final AxeronConfigJournal journal = new AxeronConfigJournal(JOURNAL_FILE);
+    // journaled mutations so far, guarded by this
+    private long journaled;
     private final Runnable mWriteRunner = new Runnable() {
 
         @Override
         public void run() {
-            write(config);
+            // only the copy is taken under the lock; the full write and its fsync run
+            // outside it, so update()/remove() never wait for them
+            AxeronConfig snapshot;
+            long snapshotJournaled;
+            synchronized (AxeronConfigManager.this) {
+                snapshot = snapshotLocked();
+                snapshotJournaled = journaled;
+            }
+            if (!write(snapshot)) {
+                return;
+            }
+            synchronized (AxeronConfigManager.this) {
+                // a mutation journaled after the copy is not in the file yet; its record
+                // stays until the write it scheduled, and replaying the older ones is
+                // harmless since they are already applied
+                if (journaled == snapshotJournaled) {
+                    journal.reset();
+                }
+            }
         }
     };
 
     public AxeronConfigManager() {
+        long start = SystemClock.elapsedRealtime();
         this.config = load();
 
         boolean changed = false;
@@ -61,12 +91,69 @@ public class AxeronConfigManager extends ConfigManager {
             config.packages = new ArrayList<>();
             changed = true;
         }
+        if (LEGACY_FILE.exists()) {
+            changed = true;
+        }
+
+        rebuildIndexLocked();
+        int replayed = journal.replay(new AxeronConfigJournal.Replayer() {
+            @Override
+            public void update(int uid, List<String> packages, int mask, int values) {
+                updateLocked(uid, packages, mask, values);
+            }
+
+            @Override
+            public void remove(int uid) {
+                removeLocked(uid);
+            }
+        });
+        if (replayed > 0) {
+            LOGGER.i("replayed %d journal records", replayed);
+            changed = true;
+        }
+        if (config.fingerprints == null) {
+            config.fingerprints = new HashMap<>();
+        }
+
+        // A cheap scan without GET_PERMISSIONS tells us which users had packages installed,
+        // updated or removed since the last run; only those need the full reconciliation.
+        List<Integer> userIds = UserManagerApis.getUserIdsNoThrow();
+        Map<Integer, Long> fingerprints = new HashMap<>();
+        List<Integer> changedUsers = new ArrayList<>();
+        for (int userId : userIds) {
+            long fingerprint = fingerprint(PackageManagerApis.getInstalledPackagesNoThrow(0, userId));
+            fingerprints.put(userId, fingerprint);
+            Long previous = config.fingerprints.get(userId);
+            if (previous == null || previous != fingerprint) {
+                changedUsers.add(userId);
+            }
+        }
+        if (!fingerprints.equals(config.fingerprints)) {
+            config.fingerprints = fingerprints;
+            changed = true;
+        }
 
         for (AxeronConfig.PackageEntry entry : new ArrayList<>(config.packages)) {
             if (entry.packages == null) {
                 entry.packages = new ArrayList<>();
             }
 
+            final int rawSize = entry.packages.size();
+            Set<String> s = new LinkedHashSet<>(entry.packages);
+            final int shrunkSize = s.size();
+            if (shrunkSize < rawSize) {
+                LOGGER.w("entry.packages has duplicate! Shrunk. (%d -> %d)", rawSize, shrunkSize);
+                changed = true;
+            }
+            // nothing reads the index before the constructor returns, this is the last time
+            // a loaded entry is changed in place
+            entry.packages = Collections.unmodifiableList(new ArrayList<>(s));
+
+            int entryUserId = UserHandleCompat.getUserId(entry.uid);
+            if (userIds.contains(entryUserId) && !changedUsers.contains(entryUserId)) {
+                continue;
+            }
+
             List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(entry.uid);
             if (packages.isEmpty()) {
                 LOGGER.i("remove config for uid %d since it has gone", entry.uid);
@@ -84,15 +171,6 @@ public class AxeronConfigManager extends ConfigManager {
                 }
             }
 
-            final int rawSize = entry.packages.size();
-            Set<String> s = new LinkedHashSet<>(entry.packages);
-            entry.packages.clear();
-            entry.packages.addAll(s);
-            final int shrunkSize = entry.packages.size();
-            if (shrunkSize < rawSize) {
-                LOGGER.w("entry.packages has duplicate! Shrunk. (%d -> %d)", rawSize, shrunkSize);
-            }
-
             if (packagesChanged) {
                 LOGGER.i("remove config for uid %d since the packages for it changed", entry.uid);
                 config.packages.remove(entry);
@@ -100,7 +178,9 @@ public class AxeronConfigManager extends ConfigManager {
             }
         }
 
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
+        rebuildIndexLocked();
+
+        for (int userId : changedUsers) {
             for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
                 if (pi == null
                         || pi.applicationInfo == null
@@ -121,30 +201,66 @@ public class AxeronConfigManager extends ConfigManager {
                 List<String> packages = new ArrayList<>();
                 packages.add(pkg);
 
-                updateLocked(uid, packages, ConfigManager.MASK_PERMISSION, allowed ? ConfigManager.FLAG_ALLOWED : ConfigManager.FLAG_DENIED);
-                changed = true;
+                changed |= updateLocked(uid, packages, ConfigManager.MASK_PERMISSION, allowed ? ConfigManager.FLAG_ALLOWED : ConfigManager.FLAG_DENIED);
             }
         }
 
         if (changed) {
             scheduleWriteLocked();
         }
+
+        LOGGER.i("config reconciled in %d ms, %d of %d users rescanned, changed=%s",
+                SystemClock.elapsedRealtime() - start, changedUsers.size(), userIds.size(),
+                Boolean.toString(changed));
+    }
+
+    private static long fingerprint(List<PackageInfo> packages) {
+        // order independent, so it doesn't matter how the package manager sorts the list
+        long fingerprint = packages.size();
+        for (PackageInfo pi : packages) {
+            if (pi == null) continue;
+            long h = pi.packageName.hashCode();
+            h = h * 31 + PackageInfoCompat.getLongVersionCode(pi);
+            h = h * 31 + pi.lastUpdateTime;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            fingerprint += h;
+        }
+        return fingerprint;
     }
 
     public static AxeronConfig load() {
+        AxeronConfig config = read(ATOMIC_FILE);
+        if (config == null) {
+            config = read(LEGACY_ATOMIC_FILE);
+            if (config != null) {
+                LOGGER.i("migrating " + LEGACY_ATOMIC_FILE.getBaseFile() + " to " + ATOMIC_FILE.getBaseFile());
+            }
+        }
+        if (config != null) return config;
+        LOGGER.i("no existing config file " + ATOMIC_FILE.getBaseFile() + "; starting empty");
+        return new AxeronConfig();
+    }
+
+    @Nullable
+    private static AxeronConfig read(AtomicFile file) {
         FileInputStream stream;
         try {
-            stream = ATOMIC_FILE.openRead();
+            stream = file.openRead();
         } catch (FileNotFoundException e) {
-            LOGGER.i("no existing config file " + ATOMIC_FILE.getBaseFile() + "; starting empty");
-            return new AxeronConfig();
+            return null;
         }
 
-        AxeronConfig config = null;
         try {
-            config = GSON_IN.fromJson(new InputStreamReader(stream), AxeronConfig.class);
+            BufferedInputStream in = new BufferedInputStream(stream);
+            AxeronConfigFormat format = AxeronConfigFormat.Binary.matches(in)
+                    ? AxeronConfigFormat.BINARY
+                    : AxeronConfigFormat.JSON;
+            return format.read(in);
         } catch (Throwable tr) {
-            LOGGER.w(tr, "load config");
+            LOGGER.w(tr, "load config %s", file.getBaseFile());
+            return null;
         } finally {
             try {
                 stream.close();
@@ -152,30 +268,35 @@ public class AxeronConfigManager extends ConfigManager {
                 LOGGER.w("failed to close: " + e);
             }
         }
-        if (config != null) return config;
-        return new AxeronConfig();
     }
 
-    public static void write(AxeronConfig config) {
+    public static boolean write(AxeronConfig config) {
         synchronized (ATOMIC_FILE) {
             FileOutputStream stream;
             try {
                 stream = ATOMIC_FILE.startWrite();
             } catch (IOException e) {
                 LOGGER.w("failed to write state: " + e);
-                return;
+                return false;
             }
 
             try {
-                String json = GSON_OUT.toJson(config);
-                stream.write(json.getBytes());
+                long start = SystemClock.elapsedRealtimeNanos();
+                AxeronConfigFormat.BINARY.write(config, stream);
 
                 ATOMIC_FILE.finishWrite(stream);
-                LOGGER.v("config saved");
+                LOGGER.v("config saved, %d bytes in %d us", FILE.length(),
+                        (SystemClock.elapsedRealtimeNanos() - start) / 1000);
             } catch (Throwable tr) {
                 LOGGER.w(tr, "can't save %s, restoring backup.", ATOMIC_FILE.getBaseFile());
                 ATOMIC_FILE.failWrite(stream);
+                return false;
             }
+
+            if (LEGACY_FILE.exists()) {
+                LEGACY_ATOMIC_FILE.delete();
+            }
+            return true;
         }
     }
 
@@ -190,21 +311,26 @@ public class AxeronConfigManager extends ConfigManager {
         HandlerKt.getWorkerHandler().postDelayed(mWriteRunner, WRITE_DELAY);
     }
 
+    private AxeronConfig snapshotLocked() {
+        // entries are never changed once published, copying the list is enough
+        AxeronConfig snapshot = new AxeronConfig(new ArrayList<>(config.packages));
+        snapshot.version = config.version;
+        snapshot.fingerprints = new HashMap<>(config.fingerprints);
+        return snapshot;
+    }
+
+    private void rebuildIndexLocked() {
+        index = IntHashIndex.of(config.packages, entry -> entry.uid);
+    }
+
     private AxeronConfig.PackageEntry findLocked(int uid) {
-        for (AxeronConfig.PackageEntry entry : config.packages) {
-            if (uid == entry.uid) {
-                return entry;
-            }
-        }
-        return null;
+        return index.get(uid);
     }
 
     @Nullable
     @Override
     public AxeronConfig.PackageEntry find(int uid) {
-        synchronized (this) {
-            return findLocked(uid);
-        }
+        return index.get(uid);
     }
 
     @Nullable
@@ -212,55 +338,85 @@ public class AxeronConfigManager extends ConfigManager {
         synchronized (this) {
             AxeronConfig.PackageEntry entry = findLocked(uid);
             if (entry == null) {
-                entry = new AxeronConfig.PackageEntry(uid, ConfigManager.MASK_PERMISSION & ConfigManager.FLAG_DENIED);
-                entry.packages.addAll(PackageManagerApis.getPackagesForUidNoThrow(uid));
+                entry = new AxeronConfig.PackageEntry(uid, ConfigManager.MASK_PERMISSION & ConfigManager.FLAG_DENIED,
+                        Collections.unmodifiableList(new ArrayList<>(PackageManagerApis.getPackagesForUidNoThrow(uid))));
                 config.packages.add(entry);
+                rebuildIndexLocked();
+                journal.appendUpdate(uid, entry.packages, ConfigManager.MASK_PERMISSION, ConfigManager.FLAG_DENIED);
+                journaled++;
+                scheduleWriteLocked();
             }
             return entry;
         }
     }
 
-    private void updateLocked(int uid, List<String> packages, int mask, int values) {
+    private boolean updateLocked(int uid, List<String> packages, int mask, int values) {
         AxeronConfig.PackageEntry entry = findLocked(uid);
+        int newValue;
+        List<String> newPackages;
         if (entry == null) {
-            entry = new AxeronConfig.PackageEntry(uid, mask & values);
-            config.packages.add(entry);
+            newValue = mask & values;
+            newPackages = new ArrayList<>();
         } else {
-            int newValue = (entry.flags & ~mask) | (mask & values);
+            newValue = (entry.flags & ~mask) | (mask & values);
             if (newValue == entry.flags) {
-                return;
+                return false;
             }
-            entry.flags = newValue;
+            newPackages = new ArrayList<>(entry.packages);
         }
         if (packages != null) {
             for (String packageName : packages) {
-                if (entry.packages.contains(packageName)) {
+                if (newPackages.contains(packageName)) {
                     continue;
                 }
-                entry.packages.add(packageName);
+                newPackages.add(packageName);
             }
         }
+        replaceLocked(entry, new AxeronConfig.PackageEntry(uid, newValue, Collections.unmodifiableList(newPackages)));
         scheduleWriteLocked();
+        return true;
+    }
+
+    /**
+     * Puts {@code updated} in the place of {@code current}, or adds it when there is no
+     * current entry, and publishes the new index.
+     */
+    private void replaceLocked(@Nullable AxeronConfig.PackageEntry current, AxeronConfig.PackageEntry updated) {
+        int position = current != null ? config.packages.indexOf(current) : -1;
+        if (position >= 0) {
+            config.packages.set(position, updated);
+        } else {
+            config.packages.add(updated);
+        }
+        rebuildIndexLocked();
     }
 
     public void update(int uid, List<String> packages, int mask, int values) {
         synchronized (this) {
-            updateLocked(uid, packages, mask, values);
+            if (updateLocked(uid, packages, mask, values)) {
+                journal.appendUpdate(uid, packages, mask, values);
+                journaled++;
+            }
         }
     }
 
-    private void removeLocked(int uid) {
+    private boolean removeLocked(int uid) {
         AxeronConfig.PackageEntry entry = findLocked(uid);
         if (entry == null) {
-            return;
+            return false;
         }
         config.packages.remove(entry);
+        rebuildIndexLocked();
         scheduleWriteLocked();
+        return true;
     }
 
     public void remove(int uid) {
         synchronized (this) {
-            removeLocked(uid);
+            if (removeLocked(uid)) {
+                journal.appendRemove(uid);
+                journaled++;
+            }
         }
     }
 }
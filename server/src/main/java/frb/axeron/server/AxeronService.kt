@@ -4,7 +4,6 @@ import android.Manifest.permission.WRITE_SECURE_SETTINGS
 import android.app.ActivityThread
 import android.content.Context
 import android.content.ContextHidden
-import android.content.IContentProvider
 import android.content.Intent
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
@@ -33,8 +32,8 @@ import frb.axeron.server.ServerConstants.PERMISSION
 import frb.axeron.server.ServerConstants.SHIZUKU_MANAGER_APPLICATION_ID
 import frb.axeron.server.api.RemoteProcessHolder
 import frb.axeron.server.util.HandlerUtil
-import frb.axeron.server.util.IContentProviderCompat
 import frb.axeron.server.util.OsUtils
+import frb.axeron.server.util.ProcessSpawner
 import frb.axeron.server.util.UserHandleCompat
 import frb.axeron.shared.AxeronApiConstant
 import frb.axeron.shared.AxeronApiConstant.server.BINDER_DESCRIPTOR
@@ -55,12 +54,11 @@ import frb.axeron.shared.ShizukuApiConstant.REQUEST_PERMISSION_REPLY_ALLOWED
 import frb.axeron.shared.ShizukuApiConstant.REQUEST_PERMISSION_REPLY_IS_ONETIME
 import frb.axeron.shared.ShizukuApiConstant.SHIZUKU_SERVER_PATCH_VERSION
 import frb.axeron.shared.ShizukuApiConstant.SHIZUKU_SERVER_VERSION
-import moe.shizuku.api.BinderContainer
+import frb.axeron.shared.ShizukuApiConstant.USER_SERVICE_ARG_TOKEN
 import moe.shizuku.server.IRemoteProcess
 import moe.shizuku.server.IShizukuApplication
 import moe.shizuku.server.IShizukuService
 import rikka.hidden.compat.ActivityManagerApis
-import rikka.hidden.compat.DeviceIdleControllerApis
 import rikka.hidden.compat.PackageManagerApis
 import rikka.hidden.compat.PermissionManagerApis
 import rikka.hidden.compat.UserManagerApis
@@ -70,6 +68,10 @@ import rikka.rish.RishConfig
 import java.io.File
 import java.io.IOException
 import java.lang.ref.WeakReference
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLongArray
 import kotlin.system.exitProcess
 
 
@@ -77,6 +79,21 @@ open class AxeronService :
     Service<AxeronUserServiceManager, AxeronClientManager, AxeronConfigManager>() {
 
     companion object {
+        private const val STARTUP_FAN_OUT_THREADS = 4
+        private const val CALLER_DECISION_SLOTS = 256
+
+        /**
+         * [getServerInfo] together with [timeToReady]. [ServerInfo] and its parcel layout
+         * belong to the api library, so the extra field follows it in the reply.
+         * ```
+         * reply: ServerInfo, long timeToReady (-1 while the startup broadcast runs)
+         * ```
+         */
+        const val BINDER_TRANSACTION_getServerInfo = 20004
+
+        // static, the user service manager reads the environment from the base constructor
+        private val ENVIRONMENT_LOCK = Any()
+
         @JvmStatic
         fun main(args: Array<String>) {
             DdmHandleAppName.setAppName("axeron_server", 0)
@@ -88,6 +105,26 @@ open class AxeronService :
             Looper.loop()
         }
 
+        /**
+         * Client side of [BINDER_TRANSACTION_getServerInfo].
+         */
+        @JvmStatic
+        fun fetchServerInfo(binder: IBinder): Pair<ServerInfo, Long> {
+            val data = Parcel.obtain()
+            val reply = Parcel.obtain()
+            try {
+                data.writeInterfaceToken(BINDER_DESCRIPTOR)
+                binder.transact(BINDER_TRANSACTION_getServerInfo, data, reply, 0)
+                reply.readException()
+                @Suppress("DEPRECATION")
+                val info = reply.readParcelable<ServerInfo>(ServerInfo::class.java.classLoader)!!
+                return info to reply.readLong()
+            } finally {
+                data.recycle()
+                reply.recycle()
+            }
+        }
+
         fun waitSystemService(name: String) {
             while (ServiceManager.getService(name) == null) {
                 try {
@@ -118,7 +155,8 @@ open class AxeronService :
             )
         }
 
-        fun sendBinderToClient(binder: IBinder, userId: Int) {
+        fun sendBinderToClient(binder: IBinder, userId: Int): List<CompletableFuture<Boolean>> {
+            val deliveries = ArrayList<CompletableFuture<Boolean>>()
             try {
                 for (pi in PackageManagerApis.getInstalledPackagesNoThrow(
                     PackageManager.GET_PERMISSIONS.toLong(),
@@ -128,12 +166,13 @@ open class AxeronService :
                         continue
 
                     if ((pi.requestedPermissions as Array<out Any?>).contains(PERMISSION)) {
-                        sendBinderToUserApp(binder, pi.packageName, userId)
+                        deliveries.add(sendBinderToUserApp(binder, pi.packageName, userId))
                     }
                 }
             } catch (it: Throwable) {
                 LOGGER.e("sendBinderToClient failed", it)
             }
+            return deliveries
         }
 
         fun sendBinderToManager(binder: IBinder) {
@@ -149,85 +188,22 @@ open class AxeronService :
         }
 
         @JvmStatic
-        fun sendBinderToManager(binder: IBinder, userId: Int) {
-            sendBinderToUserApp(binder, MANAGER_APPLICATION_ID, userId)
+        fun sendBinderToManager(binder: IBinder, userId: Int): CompletableFuture<Boolean> {
+            return sendBinderToUserApp(binder, MANAGER_APPLICATION_ID, userId)
         }
 
         @JvmStatic
-        fun sendBinderToShizukuManager(binder: IBinder, userId: Int) {
-            sendBinderToUserApp(binder, SHIZUKU_MANAGER_APPLICATION_ID, userId)
+        fun sendBinderToShizukuManager(binder: IBinder, userId: Int): CompletableFuture<Boolean> {
+            return sendBinderToUserApp(binder, SHIZUKU_MANAGER_APPLICATION_ID, userId)
         }
 
         @JvmStatic
-        fun sendBinderToUserApp(binder: IBinder, packageName: String, userId: Int) {
-            sendBinderToUserApp(binder, packageName, userId, true)
-        }
-
-        fun sendBinderToUserApp(binder: IBinder, packageName: String, userId: Int, retry: Boolean) {
-            try {
-                DeviceIdleControllerApis.addPowerSaveTempWhitelistApp(
-                    packageName, 30 * 1000, userId,
-                    316/* PowerExemptionManager#REASON_SHELL */, "shell"
-                )
-                LOGGER.v("Add %d:%s to power save temp whitelist for 30s", userId, packageName)
-            } catch (it: Throwable) {
-                LOGGER.e(
-                    it,
-                    "Failed to add %d:%s to power save temp whitelist",
-                    userId,
-                    packageName
-                )
-            }
-
-            var name: String
-            var extraBinder: String
-            if (packageName == MANAGER_APPLICATION_ID) {
-                name = "$packageName.server"
-                extraBinder = "AxServer.BINDER"
-            } else {
-                name = "$packageName.shizuku"
-                extraBinder = "moe.shizuku.privileged.api.intent.extra.BINDER"
-            }
-            var provider: IContentProvider?
-            val token: IBinder? = null
-
-            try {
-                provider =
-                    ActivityManagerApis.getContentProviderExternal(name, userId, token, name)
-                if (provider == null) {
-                    LOGGER.e("provider is null %s %d", name, userId)
-                    return
-                }
-                if (!provider.asBinder().pingBinder()) {
-                    LOGGER.e("provider is dead %s %d", name, userId)
-
-                    if (retry) {
-                        ActivityManagerApis.forceStopPackageNoThrow(packageName, userId)
-                        LOGGER.e("kill %s in user %d and try again", packageName, userId)
-                        Thread.sleep(1000)
-                        sendBinderToUserApp(binder, packageName, userId, false)
-                    }
-                    return
-                }
-
-                if (!retry) {
-                    LOGGER.e("retry works")
-                }
-
-                val extra = Bundle().apply {
-                    putParcelable(extraBinder, BinderContainer(binder))
-                }
-                IContentProviderCompat.call(provider, null, null, name, "sendBinder", null, extra)
-                LOGGER.i("send binder to user app %s in user %d", packageName, userId)
-            } catch (it: Throwable) {
-                LOGGER.e(it, "failed send binder to user app %s in user %d", packageName, userId)
-            } finally {
-                try {
-                    ActivityManagerApis.removeContentProviderExternal(name, token)
-                } catch (tr: Throwable) {
-                    LOGGER.w(tr, "removeContentProviderExternal")
-                }
-            }
+        fun sendBinderToUserApp(
+            binder: IBinder,
+            packageName: String,
+            userId: Int
+        ): CompletableFuture<Boolean> {
+            return BinderDelivery.submit(binder, packageName, userId)
         }
 
         var cachedDefaultEnv: Environment? = null
@@ -304,7 +280,7 @@ open class AxeronService :
     }
 
     override fun onCreateUserServiceManager(): AxeronUserServiceManager {
-        return AxeronUserServiceManager(getEnvironment(TYPE_ENV)?.getEnv())
+        return AxeronUserServiceManager(getMergedEnvp())
     }
 
     override fun onCreateClientManager(): AxeronClientManager {
@@ -332,20 +308,57 @@ open class AxeronService :
         return checkCaller(callingUid)
     }
 
+    private val permissionEpoch = AtomicInteger()
+
+    // checkCaller by uid, direct-mapped; each slot packs uid (32 bits), the epoch it was
+    // decided in (31 bits) and the decision, and a miss just overwrites its slot
+    private val callerDecisions = AtomicLongArray(CALLER_DECISION_SLOTS).apply {
+        // uid -1 never calls, so an unused slot cannot match
+        for (i in 0 until length()) set(i, -1L)
+    }
+
+    /**
+     * Makes every cached permission decision stale. Called whenever a permission, a client
+     * or the manager package may have changed.
+     */
+    private fun onPermissionsChanged(uid: Int = -1) {
+        permissionEpoch.incrementAndGet()
+        if (uid == -1) remoteTransactCache.invalidateAll() else remoteTransactCache.invalidate(uid)
+    }
+
     override fun checkCallerPermission(
         func: String?,
         callingUid: Int,
         callingPid: Int,
         clientRecord: ClientRecord?
     ): Boolean {
-        if (checkCaller(callingUid)) {
-            return true
+        if (clientRecord == null) return true
+
+        val epoch = permissionEpoch.get() and 0x7fffffff
+        val slot = (callingUid xor (callingUid ushr 16)) and (CALLER_DECISION_SLOTS - 1)
+        val decided = callerDecisions.get(slot)
+        if ((decided ushr 32).toInt() == callingUid && (decided.toInt() ushr 1) == epoch) {
+            return decided and 1L != 0L
         }
-        return clientRecord == null
+
+        val allowed = checkCaller(callingUid)
+        callerDecisions.set(
+            slot,
+            (callingUid.toLong() shl 32) or (epoch.toLong() shl 1) or (if (allowed) 1L else 0L)
+        )
+        return allowed
     }
 
     private val starting: Long = SystemClock.elapsedRealtime()
 
+    /**
+     * Milliseconds from server start until the startup binder broadcast reached every
+     * user, or -1 while it is still running. Clients read it with [fetchServerInfo].
+     */
+    @Volatile
+    var timeToReady: Long = -1
+        private set
+
     var shizuku: ShizukuServiceIntercept? = null
 
     val axCompanion =
@@ -367,6 +380,8 @@ open class AxeronService :
 
         getManagerApplicationInfo() ?: exitProcess(ServerConstants.MANAGER_APP_NOT_FOUND)
 
+        ServerFeatures.applyPersisted()
+
         if (axCompanion.exists()) {
             shizuku = ShizukuServiceIntercept(this)
         }
@@ -381,8 +396,7 @@ open class AxeronService :
         BinderSender.register(asInterface(this))
 
         mainHandler.post {
-            sendBinderToClient()
-            sendBinderToManager()
+            broadcastBinderOnStart()
         }
 
         acquire()
@@ -396,6 +410,43 @@ open class AxeronService :
         }
     }
 
+    /**
+     * Startup fan-out: every user is scanned on its own thread of a small pool and the
+     * deliveries it produces run concurrently in [BinderDelivery], so readiness no longer
+     * grows linearly with the number of users and work profiles.
+     */
+    private fun broadcastBinderOnStart() {
+        val userIds = UserManagerApis.getUserIdsNoThrow()
+        val shizukuBinder = shizukuService?.asBinder()
+        val threadIndex = AtomicInteger()
+        val pool = Executors.newFixedThreadPool(userIds.size.coerceIn(1, STARTUP_FAN_OUT_THREADS)) {
+            Thread(it, "StartupFanOut-" + threadIndex.incrementAndGet()).apply { isDaemon = true }
+        }
+
+        val stages = userIds.map { userId ->
+            CompletableFuture.supplyAsync({
+                val deliveries = ArrayList<CompletableFuture<Boolean>>()
+                deliveries.add(sendBinderToManager(this, userId))
+                if (shizukuBinder != null) {
+                    deliveries.add(sendBinderToShizukuManager(shizukuBinder, userId))
+                    deliveries.addAll(sendBinderToClient(shizukuBinder, userId))
+                }
+                deliveries
+            }, pool).thenCompose { deliveries ->
+                CompletableFuture.allOf(*deliveries.toTypedArray())
+            }
+        }
+        pool.shutdown()
+
+        CompletableFuture.allOf(*stages.toTypedArray()).whenComplete { _, tr ->
+            timeToReady = SystemClock.elapsedRealtime() - starting
+            if (tr != null) {
+                LOGGER.w(tr, "startup binder broadcast")
+            }
+            LOGGER.i("server ready in %d ms (%d users)", timeToReady, userIds.size)
+        }
+    }
+
     fun sendBinderToManager() {
         sendBinderToManager(this)
         shizukuService?.let {
@@ -413,56 +464,62 @@ open class AxeronService :
             if (axCompanion.delete()) {
                 userServiceManager.removeAllUserService()
                 shizuku = null
+                onPermissionsChanged()
             }
         }
         sendBinderToManager()
     }
 
-    @Volatile
-    private var cachedMergedEnv: Environment? = null
+    /**
+     * Everything derived from the environment manager, rebuilt as a whole on every change
+     * and published with a single write, so readers never see a merged env from one
+     * version next to an envp from another.
+     */
+    private class EnvironmentSnapshot(
+        val merged: Environment,
+        val fresh: Environment,
+        val envp: Array<String>
+    )
 
     @Volatile
-    private var cachedNewEnv: Environment? = null
-    private fun getMergedEnvironment(): Environment {
-        val cached = cachedMergedEnv
-        if (cached != null) return cached
+    private var environmentSnapshot: EnvironmentSnapshot? = null
 
-        // avoid extra temporary HashMap allocations — rely on Builder to copy if needed
-        val merged = Environment.Builder(true)
-            .putAll(getDefaultEnvironment().envMap) // prefer to pass the map directly
-            .putAll(environmentManager.getAll())    // avoid new HashMap(...)
-            .build()
-
-        cachedMergedEnv = merged
-        return merged
+    private fun environmentSnapshot(): EnvironmentSnapshot {
+        environmentSnapshot?.let { return it }
+        synchronized(ENVIRONMENT_LOCK) {
+            return environmentSnapshot ?: buildEnvironmentSnapshot().also { environmentSnapshot = it }
+        }
     }
 
-    private fun getNewEnvironment(): Environment {
-        val cached = cachedNewEnv
-        if (cached != null) return cached
-
-        // if Environment accepts a Map and you can keep it read-only, pass asMap() / toMap()
-        val newEnv = Environment(HashMap(environmentManager.getAll()), true)
-        cachedNewEnv = newEnv
-        return newEnv
+    private fun buildEnvironmentSnapshot(): EnvironmentSnapshot {
+        val all = environmentManager.getAll()
+        val merged = Environment.Builder(true)
+            .putAll(getDefaultEnvironment().envMap)
+            .putAll(all)
+            .build()
+        return EnvironmentSnapshot(merged, Environment(HashMap(all), true), merged.env)
     }
 
+    /**
+     * The merged environment as a ready envp array. Shared, must not be modified.
+     */
+    fun getMergedEnvp(): Array<String> = environmentSnapshot().envp
 
     override fun getEnvironment(envType: Int): Environment {
         return when (envType) {
-            TYPE_ENV -> getMergedEnvironment()
-            TYPE_NEW_ENV -> getNewEnvironment()
+            TYPE_ENV -> environmentSnapshot().merged
+            TYPE_NEW_ENV -> environmentSnapshot().fresh
             else -> getDefaultEnvironment()
         }
     }
 
     override fun setNewEnvironment(env: Environment) {
-        environmentManager.replaceAllBlocking(HashMap(env.envMap)) // manager needs mutability
-        // invalidate cached refs deterministically
-        cachedMergedEnv = null
-        cachedNewEnv = null
-        userServiceManager.environment =
-            getEnvironment(TYPE_ENV)?.getEnv()
+        synchronized(ENVIRONMENT_LOCK) {
+            environmentManager.replaceAllBlocking(HashMap(env.envMap)) // manager needs mutability
+            val snapshot = buildEnvironmentSnapshot()
+            environmentSnapshot = snapshot
+            userServiceManager.environment = snapshot.envp
+        }
     }
 
     fun checkRuntime(): Boolean {
@@ -515,7 +572,7 @@ open class AxeronService :
 
         val process: Process?
         try {
-            process = Runtime.getRuntime().exec(cmd, env, if (dir != null) File(dir) else null)
+            process = ProcessSpawner.exec(cmd, env, if (dir != null) File(dir) else null)
         } catch (e: IOException) {
             throw IllegalStateException(e.message)
         }
@@ -526,6 +583,34 @@ open class AxeronService :
         return RemoteProcessHolder(process, token)
     }
 
+    private val remoteTransactCache = RemoteTransactCache()
+
+    /**
+     * `BINDER_TRANSACTION_transact` of Shizuku clients. The first call of a client process
+     * goes through [transactRemote] with all of its checks; once it passed, later calls of
+     * that process are forwarded straight away until its permission changes.
+     */
+    fun transactRemoteCached(data: Parcel, reply: Parcel?, flags: Int) {
+        val callingUid = getCallingUid()
+        val callingPid = getCallingPid()
+
+        val client = remoteTransactCache.get(callingUid, callingPid)
+        if (client != null) {
+            RemoteTransactCache.forward(data, reply, flags, client.readsFlags)
+            return
+        }
+
+        val generation = remoteTransactCache.generation()
+        transactRemote(data, reply, flags)
+
+        val record = clientManager.findClient(callingUid, callingPid) ?: return
+        if (!record.allowed) return
+        remoteTransactCache.put(
+            callingUid, callingPid, generation,
+            record.apiVersion >= 13, record.client.asBinder()
+        )
+    }
+
     override fun getServerInfo(): ServerInfo {
         return ServerInfo(
             VERSION_NAME,
@@ -619,6 +704,7 @@ open class AxeronService :
             requestUid, requestPid, requestCode, allowed.toString(), onetime.toString()
         )
 
+        onPermissionsChanged(requestUid)
         val records: MutableList<ClientRecord> =
             clientManager.findClients(requestUid)
         val packages: MutableList<String?> = ArrayList()
@@ -653,6 +739,7 @@ open class AxeronService :
 
     @Synchronized
     private fun onPermissionRevoked(packageName: String?) {
+        onPermissionsChanged()
         userServiceManager.removeUserServicesForPackage(packageName)
     }
 
@@ -746,8 +833,24 @@ open class AxeronService :
         }
     }
 
+    @Throws(RemoteException::class)
+    override fun attachUserService(binder: IBinder?, options: Bundle) {
+        super.attachUserService(binder, options)
+        options.getString(USER_SERVICE_ARG_TOKEN)?.let {
+            userServiceManager.onUserServiceAttached(it)
+        }
+    }
+
     @Throws(RemoteException::class)
     override fun dispatchPackageChanged(intent: Intent?) {
+        if (!checkCaller(getCallingUid())) {
+            LOGGER.w("dispatchPackageChanged is allowed to be called only from the manager")
+            return
+        }
+        BinderSender.onPackageChanged(intent)
+        PackageSnapshots.onPackageChanged(intent)
+        // the manager may have been reinstalled with another uid
+        onPermissionsChanged()
     }
 
     override fun exit() {
@@ -822,10 +925,44 @@ open class AxeronService :
             result.writeToParcel(reply, Parcelable.PARCELABLE_WRITE_RETURN_VALUE)
             return true
         }
+        if (code == PagedApplications.BINDER_TRANSACTION_getApplicationsPaged) {
+            data.enforceInterface(BINDER_DESCRIPTOR)
+            PagedApplications.onTransact(data, reply!!)
+            return true
+        }
+        if (code == BINDER_TRANSACTION_getServerInfo) {
+            data.enforceInterface(BINDER_DESCRIPTOR)
+            reply!!.writeNoException()
+            reply.writeParcelable(getServerInfo(), Parcelable.PARCELABLE_WRITE_RETURN_VALUE)
+            reply.writeLong(timeToReady)
+            return true
+        }
+        if (code == ServerFeatures.BINDER_TRANSACTION_setFeature) {
+            data.enforceInterface(BINDER_DESCRIPTOR)
+            if (!checkCaller(getCallingUid())) {
+                reply!!.writeException(SecurityException("only the manager can switch server features"))
+                return true
+            }
+            ServerFeatures.onTransact(data, reply!!)
+            return true
+        }
+        if (code == FileStats.BINDER_TRANSACTION_statFile) {
+            data.enforceInterface(BINDER_DESCRIPTOR)
+            if (!checkCaller(getCallingUid())) {
+                reply!!.writeException(SecurityException("only the manager can stat files"))
+                return true
+            }
+            FileStats.onTransact(data, reply!!)
+            return true
+        }
+        if (code == PackageSnapshots.BINDER_TRANSACTION_getPackagesSince) {
+            data.enforceInterface(BINDER_DESCRIPTOR)
+            PackageSnapshots.onTransact(data, reply!!)
+            return true
+        }
         return super.onTransact(code, data, reply, flags)
     }
 
-    @Synchronized
     private fun getFlagsForUidInternal(uid: Int, mask: Int): Int {
         val entry: AxeronConfig.PackageEntry? = configManager.find(uid)
         if (entry != null) {
@@ -850,6 +987,7 @@ open class AxeronService :
         }
 
         if ((mask and ConfigManager.MASK_PERMISSION) != 0) {
+            onPermissionsChanged(uid)
             val allowed = (value and ConfigManager.FLAG_ALLOWED) != 0
             (value and ConfigManager.FLAG_DENIED) != 0
 
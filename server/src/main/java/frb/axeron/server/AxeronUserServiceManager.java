@@ -3,13 +3,12 @@ package frb.axeron.server;
 import static frb.axeron.server.util.HandlerUtil.getMainHandler;
 
 import android.content.pm.PackageInfo;
-import android.util.ArrayMap;
+import android.os.SystemClock;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import frb.axeron.starter.ServiceStarter;
 import rikka.hidden.compat.PackageManagerApis;
@@ -17,8 +16,10 @@ import rikka.hidden.compat.UserManagerApis;
 
 public class AxeronUserServiceManager extends UserServiceManager {
 
-    private final Map<UserServiceRecord, ApkChangedListener> apkChangedListeners = new ArrayMap<>();
-    private final Map<String, List<UserServiceRecord>> userServiceRecords = Collections.synchronizedMap(new ArrayMap<>());
+    // both are touched from binder threads and the main thread
+    private final UserServiceWatches<UserServiceRecord> watches = new UserServiceWatches<>();
+    private final Map<String, StartRequest> startRequests = new ConcurrentHashMap<>(); // by record token
+    private final UserServiceStandby standby = new UserServiceStandby();
 
 
     public AxeronUserServiceManager(String[] env) {
@@ -35,7 +36,7 @@ public class AxeronUserServiceManager extends UserServiceManager {
     public String getUserServiceStartCmd(
             UserServiceRecord record, String key, String token, String packageName,
             String classname, String processNameSuffix, int callingUid, boolean use32Bits, boolean debug) {
-
+        long requestedAt = SystemClock.elapsedRealtime();
 
         String appProcess = "/system/bin/app_process";
         if (use32Bits && new File("/system/bin/app_process32").exists()) {
@@ -43,12 +44,37 @@ public class AxeronUserServiceManager extends UserServiceManager {
         }
 
         LOGGER.i("ShizukuUserServiceManager.getUserServiceStartCmd: appProcess=%s", appProcess);
+        String managerApkPath = Objects.requireNonNull(AxeronService.getManagerApplicationInfo()).sourceDir;
+
+        if (UserServiceStandby.isEnabled() && !use32Bits && !debug) {
+            String processName = ServiceStarter.processNameForUserService(packageName, processNameSuffix);
+            String[] args = ServiceStarter.argsForUserService(token, packageName, classname, callingUid);
+            if (standby.handOff(getUserServiceCmd()[0], managerApkPath, getEnvironment(), processName, args)) {
+                LOGGER.i("user service %s handed to the standby process", processName);
+                startRequests.put(token, new StartRequest(requestedAt, true));
+                // the standby is already running, the starter shell has nothing left to do
+                return "true";
+            }
+        }
+
+        startRequests.put(token, new StartRequest(requestedAt, false));
         return ServiceStarter.commandForUserService(
-                appProcess,
-                Objects.requireNonNull(AxeronService.getManagerApplicationInfo()).sourceDir,
+                appProcess, managerApkPath,
                 token, packageName, classname, processNameSuffix, callingUid, debug);
     }
 
+    /**
+     * Called once the user service attached its binder. The time is measured from the start
+     * request, so the cold path includes the app_process and runtime start as well.
+     */
+    void onUserServiceAttached(String token) {
+        StartRequest request = startRequests.remove(token);
+        if (request == null) return;
+
+        LOGGER.i("user service %s attached %d ms after its start request (%s)", token,
+                SystemClock.elapsedRealtime() - request.requestedAt, request.standby ? "standby" : "cold");
+    }
+
     @Override
     public void onUserServiceRecordCreated(UserServiceRecord record, PackageInfo packageInfo) {
         LOGGER.i("onUserServiceRecordCreated1: %s", record);
@@ -71,7 +97,7 @@ public class AxeronUserServiceManager extends UserServiceManager {
                     record.removeSelf();
                 } else {
                     LOGGER.v("update apk listener for record %s since package %s is upgrading", record.token, packageName);
-                    ApkChangedObservers.stop(this);
+                    // moves the listener when the package got a new directory
                     ApkChangedObservers.start(newSourceDir, getMainHandler(), this);
                 }
             }
@@ -80,16 +106,37 @@ public class AxeronUserServiceManager extends UserServiceManager {
         LOGGER.i("onUserServiceRecordCreated2: %s", record);
         ApkChangedObservers.start(packageInfo.applicationInfo.sourceDir, getMainHandler(), listener);
         LOGGER.i("onUserServiceRecordCreated3: %s", record);
-        apkChangedListeners.put(record, listener);
+        ApkChangedListener previous = watches.put(record.token, packageName, record, listener);
+        if (previous != null) {
+            ApkChangedObservers.stop(previous);
+        }
         LOGGER.i("onUserServiceRecordCreated4: %s", record);
     }
 
     @Override
     public void onUserServiceRecordRemoved(UserServiceRecord record) {
-        ApkChangedListener listener = apkChangedListeners.get(record);
+        startRequests.remove(record.token);
+        ApkChangedListener listener = watches.remove(record.token);
         if (listener != null) {
             ApkChangedObservers.stop(listener);
-            apkChangedListeners.remove(record);
+        }
+    }
+
+    @Override
+    public void removeUserServicesForPackage(String packageName) {
+        // only the records of this package, removeSelf comes back through onUserServiceRecordRemoved
+        for (UserServiceRecord record : watches.recordsOf(packageName)) {
+            record.removeSelf();
+        }
+    }
+
+    private static final class StartRequest {
+        final long requestedAt;
+        final boolean standby;
+
+        StartRequest(long requestedAt, boolean standby) {
+            this.requestedAt = requestedAt;
+            this.standby = standby;
         }
     }
 }
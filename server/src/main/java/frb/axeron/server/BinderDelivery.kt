@@ -0,0 +1,177 @@
+package frb.axeron.server
+
+import android.content.IContentProvider
+import android.os.Bundle
+import android.os.IBinder
+import frb.axeron.server.ServerConstants.MANAGER_APPLICATION_ID
+import frb.axeron.server.util.IContentProviderCompat
+import frb.axeron.server.util.Logger
+import moe.shizuku.api.BinderContainer
+import rikka.hidden.compat.ActivityManagerApis
+import rikka.hidden.compat.DeviceIdleControllerApis
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Delivers server binders to client apps through their content provider.
+ *
+ * Every delivery runs on a small pool, so an app whose provider hangs or is dead only
+ * occupies one of [MAX_CONCURRENT] threads. Dead providers are retried later with
+ * exponential backoff instead of sleeping on the caller's thread, and a delivery that is
+ * already in flight for the same package, user and binder is not queued twice.
+ */
+object BinderDelivery {
+
+    private val LOGGER = Logger("BinderDelivery")
+
+    private const val MAX_CONCURRENT = 4
+    private const val MAX_ATTEMPTS = 3
+    private const val INITIAL_BACKOFF_MS = 1000L
+
+    private enum class Result { DELIVERED, RETRY, FAILED }
+
+    private data class Request(val binder: IBinder, val packageName: String, val userId: Int)
+
+    private val threadIndex = AtomicInteger()
+
+    private val executor = ScheduledThreadPoolExecutor(MAX_CONCURRENT) { r ->
+        Thread(r, "BinderDelivery-" + threadIndex.incrementAndGet()).apply { isDaemon = true }
+    }.apply {
+        removeOnCancelPolicy = true
+    }
+
+    private val inFlight = ConcurrentHashMap<Request, CompletableFuture<Boolean>>()
+
+    private val delivered = AtomicLong()
+    private val retried = AtomicLong()
+    private val failed = AtomicLong()
+
+    @JvmStatic
+    val deliveredCount: Long get() = delivered.get()
+
+    @JvmStatic
+    val retriedCount: Long get() = retried.get()
+
+    @JvmStatic
+    val failedCount: Long get() = failed.get()
+
+    /**
+     * @return a future completed with whether the binder reached the app, shared with an
+     * identical delivery that is already in flight
+     */
+    @JvmStatic
+    fun submit(binder: IBinder, packageName: String, userId: Int): CompletableFuture<Boolean> {
+        val request = Request(binder, packageName, userId)
+        val future = CompletableFuture<Boolean>()
+        val existing = inFlight.putIfAbsent(request, future)
+        if (existing != null) {
+            LOGGER.v("Delivery to %d:%s is already in flight", userId, packageName)
+            return existing
+        }
+        executor.execute { run(request, 0) }
+        return future
+    }
+
+    private fun run(request: Request, attempt: Int) {
+        val result = try {
+            deliver(request, attempt)
+        } catch (it: Throwable) {
+            LOGGER.e(it, "deliver to %d:%s", request.userId, request.packageName)
+            Result.FAILED
+        }
+
+        if (result == Result.RETRY && attempt + 1 < MAX_ATTEMPTS) {
+            val delay = INITIAL_BACKOFF_MS shl attempt
+            retried.incrementAndGet()
+            LOGGER.w(
+                "retry %d:%s in %dms (attempt %d)",
+                request.userId, request.packageName, delay, attempt + 1
+            )
+            executor.schedule({ run(request, attempt + 1) }, delay, TimeUnit.MILLISECONDS)
+            return
+        }
+
+        if (result == Result.DELIVERED) {
+            delivered.incrementAndGet()
+        } else {
+            failed.incrementAndGet()
+        }
+        inFlight.remove(request)?.complete(result == Result.DELIVERED)
+    }
+
+    private fun deliver(request: Request, attempt: Int): Result {
+        val packageName = request.packageName
+        val userId = request.userId
+
+        try {
+            DeviceIdleControllerApis.addPowerSaveTempWhitelistApp(
+                packageName, 30 * 1000, userId,
+                316/* PowerExemptionManager#REASON_SHELL */, "shell"
+            )
+            LOGGER.v("Add %d:%s to power save temp whitelist for 30s", userId, packageName)
+        } catch (it: Throwable) {
+            LOGGER.e(
+                it,
+                "Failed to add %d:%s to power save temp whitelist",
+                userId,
+                packageName
+            )
+        }
+
+        val name: String
+        val extraBinder: String
+        if (packageName == MANAGER_APPLICATION_ID) {
+            name = "$packageName.server"
+            extraBinder = "AxServer.BINDER"
+        } else {
+            name = "$packageName.shizuku"
+            extraBinder = "moe.shizuku.privileged.api.intent.extra.BINDER"
+        }
+        val provider: IContentProvider?
+        val token: IBinder? = null
+
+        try {
+            provider =
+                ActivityManagerApis.getContentProviderExternal(name, userId, token, name)
+            if (provider == null) {
+                LOGGER.e("provider is null %s %d", name, userId)
+                return Result.FAILED
+            }
+            if (!provider.asBinder().pingBinder()) {
+                LOGGER.e("provider is dead %s %d", name, userId)
+
+                // For unknown reason, sometimes this could happens
+                // Kill the app and try again could work, but only once
+                if (attempt == 0) {
+                    ActivityManagerApis.forceStopPackageNoThrow(packageName, userId)
+                    LOGGER.e("kill %s in user %d and try again", packageName, userId)
+                }
+                return Result.RETRY
+            }
+
+            if (attempt > 0) {
+                LOGGER.e("retry works")
+            }
+
+            val extra = Bundle().apply {
+                putParcelable(extraBinder, BinderContainer(request.binder))
+            }
+            IContentProviderCompat.call(provider, null, null, name, "sendBinder", null, extra)
+            LOGGER.i("send binder to user app %s in user %d", packageName, userId)
+            return Result.DELIVERED
+        } catch (it: Throwable) {
+            LOGGER.e(it, "failed send binder to user app %s in user %d", packageName, userId)
+            return Result.FAILED
+        } finally {
+            try {
+                ActivityManagerApis.removeContentProviderExternal(name, token)
+            } catch (tr: Throwable) {
+                LOGGER.w(tr, "removeContentProviderExternal")
+            }
+        }
+    }
+}
@@ -6,18 +6,28 @@ import static android.app.ActivityManagerHidden.UID_OBSERVER_GONE;
 import static android.app.ActivityManagerHidden.UID_OBSERVER_IDLE;
 
 import android.app.ActivityManagerHidden;
+import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import frb.axeron.server.util.ConcurrentLongSet;
 import frb.axeron.server.util.Logger;
 import kotlin.collections.ArraysKt;
 import moe.shizuku.server.IShizukuService;
@@ -39,163 +49,320 @@ public class BinderSender {
 
     private static IAxeronService axeronService;
 
-    private static final Map<Integer, List<String>> UID_PACKAGE_CACHE = new ConcurrentHashMap<>();
-    private static final Set<String> SENT_BINDERS = ConcurrentHashMap.newKeySet();
+    // dropped from dispatchPackageChanged, which the manager calls for every package
+    // broadcast, and when a uid is disabled
+    private static final Map<Integer, UidInfo> UID_INFO_CACHE = new ConcurrentHashMap<>();
+    // keyed by (uid << 32 | pid), kept only for delivered sends and pruned when the
+    // process or the uid goes away, see sendBinder
+    private static final ConcurrentLongSet SENT_BINDERS = new ConcurrentLongSet();
+
+    private static final int DISPATCH_THREADS = 2;
+    private static final int DISPATCH_QUEUE_CAPACITY = 256;
+
+    // Observer callbacks only record the latest pid for a uid here; the dispatch thread
+    // picks it up later, so a burst of events for the same uid collapses into one send.
+    private static final Map<Integer, PendingSend> PENDING_SENDS = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger QUEUE_DEPTH = new AtomicInteger();
+    private static final AtomicLong DISPATCH_COUNT = new AtomicLong();
+    private static final AtomicLong DISPATCH_TOTAL_NANOS = new AtomicLong();
+    private static final AtomicLong DISPATCH_MAX_NANOS = new AtomicLong();
+
+    private static final ThreadPoolExecutor DISPATCHER = createDispatcher();
+
+    private static ThreadPoolExecutor createDispatcher() {
+        AtomicInteger index = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                DISPATCH_THREADS, DISPATCH_THREADS,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(DISPATCH_QUEUE_CAPACITY),
+                r -> {
+                    Thread thread = new Thread(r, "BinderSender-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static final class PendingSend {
+        volatile int pid;
+        final long enqueuedAt;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        PendingSend(int pid, long enqueuedAt) {
+            this.pid = pid;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static void enqueue(int uid, int pid) {
+        PendingSend pending = PENDING_SENDS.compute(uid, (key, current) -> {
+            if (current == null) {
+                return new PendingSend(pid, SystemClock.elapsedRealtimeNanos());
+            }
+            // a send for this uid is already waiting, just let it use the newest pid
+            current.pid = pid;
+            return current;
+        });
+        if (!pending.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        QUEUE_DEPTH.incrementAndGet();
+        try {
+            DISPATCHER.execute(() -> dispatch(uid));
+        } catch (RejectedExecutionException e) {
+            QUEUE_DEPTH.decrementAndGet();
+            PENDING_SENDS.remove(uid, pending);
+            LOGGER.w("Binder dispatch queue is full, drop send for uid %d", uid);
+        }
+    }
+
+    private static void dispatch(int uid) {
+        QUEUE_DEPTH.decrementAndGet();
+        PendingSend pending = PENDING_SENDS.remove(uid);
+        if (pending == null) {
+            return;
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            sendBinder(uid, pending.pid);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "dispatch binder to uid %d", uid);
+        }
+        long end = SystemClock.elapsedRealtimeNanos();
+
+        long latency = end - pending.enqueuedAt;
+        DISPATCH_COUNT.incrementAndGet();
+        DISPATCH_TOTAL_NANOS.addAndGet(latency);
+        DISPATCH_MAX_NANOS.accumulateAndGet(latency, Math::max);
+        LOGGER.v("Dispatched uid %d: wait=%dms, send=%dms, queue=%d",
+                uid,
+                TimeUnit.NANOSECONDS.toMillis(start - pending.enqueuedAt),
+                TimeUnit.NANOSECONDS.toMillis(end - start),
+                QUEUE_DEPTH.get());
+    }
+
+    public static int getQueueDepth() {
+        return QUEUE_DEPTH.get();
+    }
+
+    public static long getDispatchCount() {
+        return DISPATCH_COUNT.get();
+    }
+
+    public static long getAverageDispatchLatencyMillis() {
+        long count = DISPATCH_COUNT.get();
+        if (count == 0) return 0;
+        return TimeUnit.NANOSECONDS.toMillis(DISPATCH_TOTAL_NANOS.get() / count);
+    }
+
+    public static long getMaxDispatchLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(DISPATCH_MAX_NANOS.get());
+    }
+
+    private static UidInfo getUidInfoCached(int uid) {
+        UidInfo info = UID_INFO_CACHE.get(uid);
+        if (info == null) {
+            info = UidInfo.load(uid);
+            UID_INFO_CACHE.put(uid, info);
+        }
+        return info;
+    }
+
+    public static void invalidatePackageCache(int uid) {
+        if (UID_INFO_CACHE.remove(uid) != null) {
+            LOGGER.v("Invalidate package cache for uid %d", uid);
+        }
+    }
+
+    public static void invalidatePackageCache() {
+        UID_INFO_CACHE.clear();
+        LOGGER.v("Invalidate package cache");
+    }
 
-    private static List<String> getPackagesCached(int uid) {
-        return UID_PACKAGE_CACHE.computeIfAbsent(uid, PackageManagerApis::getPackagesForUidNoThrow);
+    public static void onPackageChanged(Intent intent) {
+        int uid = intent != null ? intent.getIntExtra(Intent.EXTRA_UID, -1) : -1;
+        if (uid == -1) {
+            invalidatePackageCache();
+        } else {
+            invalidatePackageCache(uid);
+        }
+    }
+
+    /**
+     * Packages of a uid together with what each of them asks for.
+     */
+    private static final class UidInfo {
+
+        static final int KIND_MANAGER = 1;
+        static final int KIND_SHIZUKU_MANAGER = 2;
+        static final int KIND_API_V23 = 3;
+
+        final List<String> packages;
+        final boolean isOurManager;
+        // packages requesting one of our permissions, in package order
+        final String[] targets;
+        final int[] kinds;
+
+        private UidInfo(List<String> packages, String[] targets, int[] kinds) {
+            this.packages = packages;
+            this.isOurManager = packages.contains(ServerConstants.MANAGER_APPLICATION_ID);
+            this.targets = targets;
+            this.kinds = kinds;
+        }
+
+        static UidInfo load(int uid) {
+            int userId = uid / 100000;
+            List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
+            String[] targets = new String[packages.size()];
+            int[] kinds = new int[packages.size()];
+            int count = 0;
+
+            for (int i = 0; i < packages.size(); i++) {
+                String packageName = packages.get(i);
+                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(
+                        packageName,
+                        PackageManager.GET_PERMISSIONS,
+                        userId
+                );
+                if (pi == null || pi.requestedPermissions == null)
+                    continue;
+
+                int kind;
+                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER)) {
+                    kind = KIND_MANAGER;
+                } else if (ArraysKt.contains(pi.requestedPermissions, SHIZUKU_PERMISSION_MANAGER)) {
+                    kind = KIND_SHIZUKU_MANAGER;
+                } else if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
+                    kind = KIND_API_V23;
+                } else {
+                    continue;
+                }
+                targets[count] = packageName;
+                kinds[count] = kind;
+                count++;
+            }
+
+            return new UidInfo(packages, Arrays.copyOf(targets, count), Arrays.copyOf(kinds, count));
+        }
+    }
+
+    private static boolean isGranted(String permission, int uid, int pid) throws RemoteException {
+        return pid == -1
+                ? PermissionManagerApis.checkPermission(permission, uid)
+                == PackageManager.PERMISSION_GRANTED
+                : ActivityManagerApis.checkPermission(permission, pid, uid)
+                == PackageManager.PERMISSION_GRANTED;
     }
 
     private static void sendBinder(int uid, int pid) throws RemoteException {
-        String key = uid + ":" + pid;
+        long key = ConcurrentLongSet.pack(uid, pid);
         if (!SENT_BINDERS.add(key)) {
-            LOGGER.v("Skip duplicate binder send for %s", key);
+            LOGGER.v("Skip duplicate binder send for %d:%d", uid, pid);
+            return;
+        }
+
+        // The key only claims the send. The observers drop it when the process or the uid
+        // goes away; if that happened before the key was added they are no longer tracking
+        // it, and the key must not outlive them.
+        if (!isTracked(uid, pid)) {
+            SENT_BINDERS.remove(key);
             return;
         }
 
+        CompletableFuture<Boolean> delivery = null;
+        try {
+            delivery = trySendBinder(uid, pid);
+        } finally {
+            if (delivery == null) {
+                SENT_BINDERS.remove(key);
+            }
+        }
+        if (delivery == null) return;
+
+        // it stays only once the binder was delivered
+        delivery.whenComplete((delivered, tr) -> {
+            if (!Boolean.TRUE.equals(delivered)) {
+                SENT_BINDERS.remove(key);
+            }
+        });
+    }
+
+    private static boolean isTracked(int uid, int pid) {
+        return pid == -1 ? UidObserver.UID_LIST.contains(uid) : ProcessObserver.PID_LIST.contains(pid);
+    }
+
+    /**
+     * @return the delivery of the binder, or {@code null} if nothing was sent
+     */
+    private static CompletableFuture<Boolean> trySendBinder(int uid, int pid) throws RemoteException {
         int userId = uid / 100000;
 
-        List<String> packages = getPackagesCached(uid);
-        if (packages.isEmpty())
-            return;
+        UidInfo info = getUidInfoCached(uid);
+        if (info.packages.isEmpty())
+            return null;
 
-        boolean isOurManager = packages.contains(ServerConstants.MANAGER_APPLICATION_ID);
+        if (info.targets.length == 0 && !info.isOurManager)
+            return null;
 
         IShizukuService shizukuService = axeronService.getShizukuService();
 
         // 🔒 secure fast-path
-        if (shizukuService == null && isOurManager) {
+        if (shizukuService == null && info.isOurManager) {
             LOGGER.d(
                     "Shizuku unavailable, uid %d belongs to manager, send binder directly",
                     uid
             );
-            AxeronService.sendBinderToManager(axeronService.asBinder(), userId);
-            return;
+            return AxeronService.sendBinderToManager(axeronService.asBinder(), userId);
         }
 
         // Kalau bukan manager, dan shizuku null → STOP
         if (shizukuService == null)
-            return;
+            return null;
 
         LOGGER.d(
                 "sendBinder to uid %d: packages=%s",
                 uid,
-                TextUtils.join(", ", packages)
+                TextUtils.join(", ", info.packages)
         );
 
-        for (String packageName : packages) {
+        for (int i = 0; i < info.targets.length; i++) {
+            String packageName = info.targets[i];
             try {
-                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(
-                        packageName,
-                        PackageManager.GET_PERMISSIONS,
-                        userId
-                );
-                if (pi == null || pi.requestedPermissions == null)
-                    continue;
-
-                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER)) {
-                    boolean granted = pid == -1
-                            ? PermissionManagerApis.checkPermission(PERMISSION_MANAGER, uid)
-                            == PackageManager.PERMISSION_GRANTED
-                            : ActivityManagerApis.checkPermission(PERMISSION_MANAGER, pid, uid)
-                            == PackageManager.PERMISSION_GRANTED;
-
-                    if (granted) {
-                        AxeronService.sendBinderToManager(
-                                axeronService.asBinder(),
-                                userId
-                        );
-                        return;
-                    }
-
-                } else if (ArraysKt.contains(pi.requestedPermissions, SHIZUKU_PERMISSION_MANAGER)) {
-                    boolean granted = pid == -1
-                            ? PermissionManagerApis.checkPermission(SHIZUKU_PERMISSION_MANAGER, uid)
-                            == PackageManager.PERMISSION_GRANTED
-                            : ActivityManagerApis.checkPermission(SHIZUKU_PERMISSION_MANAGER, pid, uid)
-                            == PackageManager.PERMISSION_GRANTED;
-
-                    if (granted) {
-                        AxeronService.sendBinderToShizukuManager(
+                switch (info.kinds[i]) {
+                    case UidInfo.KIND_MANAGER:
+                        if (isGranted(PERMISSION_MANAGER, uid, pid)) {
+                            return AxeronService.sendBinderToManager(
+                                    axeronService.asBinder(),
+                                    userId
+                            );
+                        }
+                        break;
+                    case UidInfo.KIND_SHIZUKU_MANAGER:
+                        if (isGranted(SHIZUKU_PERMISSION_MANAGER, uid, pid)) {
+                            return AxeronService.sendBinderToShizukuManager(
+                                    shizukuService.asBinder(),
+                                    userId
+                            );
+                        }
+                        break;
+                    case UidInfo.KIND_API_V23:
+                        return AxeronService.sendBinderToUserApp(
                                 shizukuService.asBinder(),
+                                packageName,
                                 userId
                         );
-                        return;
-                    }
-
-                } else if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    AxeronService.sendBinderToUserApp(
-                            shizukuService.asBinder(),
-                            packageName,
-                            userId
-                    );
-                    return;
                 }
-
             } catch (Throwable e) {
                 LOGGER.w(e, "sendBinder failed for package %s", packageName);
             }
         }
+        return null;
     }
 
-
-//    private static void sendBinder(int uid, int pid) {
-//        String key = uid + ":" + pid;
-//        if (!SENT_BINDERS.add(key)) {
-//            LOGGER.v("Skip duplicate binder send for %s", key);
-//            return;
-//        }
-//
-//        List<String> packages = getPackagesCached(uid);
-//        if (packages.isEmpty())
-//            return;
-//
-//        LOGGER.d("sendBinder to uid %d: packages=%s", uid, TextUtils.join(", ", packages));
-//
-//        int userId = uid / 100000;
-//        for (String packageName : packages) {
-//            try {
-//                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-//                if (pi == null || pi.requestedPermissions == null)
-//                    continue;
-//
-//                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER)) {
-//                    boolean granted;
-//                    if (pid == -1)
-//                        granted = PermissionManagerApis.checkPermission(PERMISSION_MANAGER, uid) == PackageManager.PERMISSION_GRANTED;
-//                    else
-//                        granted = ActivityManagerApis.checkPermission(PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
-//
-//                    if (granted) {
-//                        AxeronService.sendBinderToManager(axeronService.asBinder(), userId);
-//                        return;
-//                    }
-//                } else if (ArraysKt.contains(pi.requestedPermissions, SHIZUKU_PERMISSION_MANAGER)) {
-//                    boolean granted;
-//                    if (pid == -1)
-//                        granted = PermissionManagerApis.checkPermission(SHIZUKU_PERMISSION_MANAGER, uid) == PackageManager.PERMISSION_GRANTED;
-//                    else
-//                        granted = ActivityManagerApis.checkPermission(SHIZUKU_PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
-//
-//                    if (granted) {
-//                        IShizukuService shizukuService = axeronService.getShizukuService();
-//                        if (shizukuService != null)
-//                            AxeronService.sendBinderToShizukuManager(shizukuService.asBinder(), userId);
-//                        return;
-//                    }
-//                } else if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-//                    IShizukuService shizukuService = axeronService.getShizukuService();
-//                    if (shizukuService != null) {
-//                        AxeronService.sendBinderToUserApp(shizukuService.asBinder(), packageName, userId);
-//                    }
-//                    return;
-//                }
-//            } catch (Throwable e) {
-//                LOGGER.w(e, "sendBinder failed for package %s", packageName);
-//            }
-//        }
-//    }
-
     public static void register(IAxeronService service) {
         axeronService = service;
 
@@ -220,49 +387,42 @@ public class BinderSender {
 
     private static class ProcessObserver extends ProcessObserverAdapter {
 
-        private static final Set<Integer> PID_LIST = new HashSet<>();
+        private static final ConcurrentLongSet PID_LIST = new ConcurrentLongSet();
 
         @Override
         public void onForegroundActivitiesChanged(int pid, int uid, boolean foregroundActivities) throws RemoteException {
             LOGGER.d("onForegroundActivitiesChanged: pid=%d, uid=%d, foregroundActivities=%s", pid, uid, foregroundActivities ? "true" : "false");
 
-            synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid) || !foregroundActivities) {
-                    return;
-                }
-                PID_LIST.add(pid);
+            if (!foregroundActivities || !PID_LIST.add(pid)) {
+                return;
             }
 
-            sendBinder(uid, pid);
+            enqueue(uid, pid);
         }
 
         @Override
         public void onProcessDied(int pid, int uid) {
             LOGGER.d("onProcessDied: pid=%d, uid=%d", pid, uid);
 
-            synchronized (PID_LIST) {
-                PID_LIST.remove(pid);
-            }
+            PID_LIST.remove(pid);
+            SENT_BINDERS.remove(ConcurrentLongSet.pack(uid, pid));
         }
 
         @Override
         public void onProcessStateChanged(int pid, int uid, int procState) throws RemoteException {
             LOGGER.d("onProcessStateChanged: pid=%d, uid=%d, procState=%d", pid, uid, procState);
 
-            synchronized (PID_LIST) {
-                if (PID_LIST.contains(pid)) {
-                    return;
-                }
-                PID_LIST.add(pid);
+            if (!PID_LIST.add(pid)) {
+                return;
             }
 
-            sendBinder(uid, pid);
+            enqueue(uid, pid);
         }
     }
 
     private static class UidObserver extends UidObserverAdapter {
 
-        private static final Set<Integer> UID_LIST = new HashSet<>();
+        private static final ConcurrentLongSet UID_LIST = new ConcurrentLongSet();
 
         @Override
         public void onUidActive(int uid) throws RemoteException {
@@ -292,26 +452,25 @@ public class BinderSender {
             LOGGER.d("onUidGone: uid=%d, disabled=%s", uid, Boolean.toString(disabled));
 
             uidGone(uid);
+            if (disabled) {
+                invalidatePackageCache(uid);
+            }
         }
 
         private void uidStarts(int uid) throws RemoteException {
-            synchronized (UID_LIST) {
-                if (UID_LIST.contains(uid)) {
-                    LOGGER.v("Uid %d already starts", uid);
-                    return;
-                }
-                UID_LIST.add(uid);
-                LOGGER.v("Uid %d starts", uid);
+            if (!UID_LIST.add(uid)) {
+                LOGGER.v("Uid %d already starts", uid);
+                return;
             }
+            LOGGER.v("Uid %d starts", uid);
 
-            sendBinder(uid, -1);
+            enqueue(uid, -1);
         }
 
         private void uidGone(int uid) {
-            synchronized (UID_LIST) {
-                UID_LIST.remove(uid);
-                LOGGER.v("Uid %d dead", uid);
-            }
+            UID_LIST.remove(uid);
+            SENT_BINDERS.remove(ConcurrentLongSet.pack(uid, -1));
+            LOGGER.v("Uid %d dead", uid);
         }
     }
 }
\ No newline at end of file
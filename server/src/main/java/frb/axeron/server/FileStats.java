@@ -0,0 +1,78 @@
+package frb.axeron.server;
+
+import android.os.Build;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Stats a file for the manager, which cannot see plugin files itself. Far cheaper than
+ * reading the file through the file service when all the caller wants to know is whether
+ * its copy is still current.
+ * <pre>
+ * request: String path
+ * reply:   long lastModified (ms, -1 if the file cannot be stat'ed), long size
+ * </pre>
+ */
+public final class FileStats {
+
+    public static final int BINDER_TRANSACTION_statFile = 20006;
+
+    private FileStats() {
+    }
+
+    /**
+     * Server side; the interface token has been enforced and the caller is the manager.
+     */
+    static void onTransact(@NonNull Parcel data, @NonNull Parcel reply) {
+        String path = data.readString();
+        long lastModified = -1;
+        long size = -1;
+        if (path != null) {
+            try {
+                StructStat stat = Os.stat(path);
+                // st_mtim keeps the sub-second part, a rewrite within the same second
+                // changes it even when the size stays the same
+                lastModified = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1
+                        ? stat.st_mtim.tv_sec * 1000L + stat.st_mtim.tv_nsec / 1_000_000
+                        : stat.st_mtime * 1000L;
+                size = stat.st_size;
+            } catch (ErrnoException ignored) {
+            }
+        }
+
+        reply.writeNoException();
+        reply.writeLong(lastModified);
+        reply.writeLong(size);
+    }
+
+    /**
+     * Client side.
+     *
+     * @return {@code {lastModified, size}}, or {@code null} if the file cannot be stat'ed
+     */
+    @Nullable
+    public static long[] stat(@NonNull IBinder binder, @NonNull String descriptor,
+                              @NonNull String path) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(descriptor);
+            data.writeString(path);
+            binder.transact(BINDER_TRANSACTION_statFile, data, reply, 0);
+            reply.readException();
+            long lastModified = reply.readLong();
+            long size = reply.readLong();
+            return lastModified == -1 ? null : new long[]{lastModified, size};
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+}
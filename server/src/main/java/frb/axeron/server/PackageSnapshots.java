@@ -0,0 +1,302 @@
+package frb.axeron.server;
+
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.net.Uri;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.content.pm.PackageInfoCompat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import frb.axeron.server.util.Logger;
+import rikka.hidden.compat.PackageManagerApis;
+import rikka.parcelablelist.ParcelableListSlice;
+
+/**
+ * Versioned per-user snapshot of the installed packages.
+ * <p>
+ * Every change to a user's package set bumps that user's version, and the version at which
+ * each package last changed is remembered. A client that already holds version N asks for
+ * the changes since N and gets only the packages added or updated after it plus the names
+ * of the removed ones, instead of the whole list.
+ * <pre>
+ * request: int userId, long epoch, long version (0 for a full list)
+ * reply:   long epoch, long version, boolean full, ParcelableListSlice changed,
+ *          String[] removed
+ * </pre>
+ * The epoch changes with every server start, so a client never applies a delta computed
+ * against a snapshot it did not see. Snapshots are kept current by the package broadcasts
+ * the manager forwards through {@code dispatchPackageChanged}; only the packages those
+ * name are read again.
+ */
+public class PackageSnapshots {
+
+    private static final Logger LOGGER = new Logger("PackageSnapshots");
+
+    public static final int BINDER_TRANSACTION_getPackagesSince = 20002;
+
+    private static final int SNAPSHOT_FLAGS = 0;
+
+    // The manager forwards package broadcasts of its own user, and every time it connects
+    // it forwards a change naming no package. This rescan only catches what neither of
+    // those reports, such as a change in another user while the manager keeps running.
+    private static final long REVALIDATE_INTERVAL = 15 * 60 * 1000;
+
+    private static final int MAX_TOMBSTONES = 256;
+
+    private static final long EPOCH = System.currentTimeMillis() ^ System.nanoTime();
+
+    private static final Map<Integer, Snapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+
+    private static final class Delta {
+        final long version;
+        final boolean full;
+        final List<PackageInfo> changed;
+        final String[] removed;
+
+        Delta(long version, boolean full, List<PackageInfo> changed, String[] removed) {
+            this.version = version;
+            this.full = full;
+            this.changed = changed;
+            this.removed = removed;
+        }
+    }
+
+    private static final class Snapshot {
+
+        final int userId;
+        final Map<String, PackageInfo> packages = new HashMap<>();
+        final Map<String, Long> changedAt = new HashMap<>();
+        final Map<String, Long> removedAt = new HashMap<>();
+        final Set<String> dirty = new HashSet<>();
+        long version;
+        // deltas can only be computed for clients at or after this version
+        long oldestDelta;
+        boolean rescan = true;
+        long lastScan;
+
+        Snapshot(int userId) {
+            this.userId = userId;
+        }
+
+        synchronized void markDirty(@Nullable String packageName) {
+            if (packageName == null) {
+                rescan = true;
+            } else {
+                dirty.add(packageName);
+            }
+        }
+
+        synchronized Delta since(long clientVersion) {
+            refreshLocked();
+
+            if (clientVersion <= 0 || clientVersion < oldestDelta || clientVersion > version) {
+                return new Delta(version, true, new ArrayList<>(packages.values()), new String[0]);
+            }
+
+            List<PackageInfo> changed = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : changedAt.entrySet()) {
+                if (entry.getValue() > clientVersion) {
+                    changed.add(packages.get(entry.getKey()));
+                }
+            }
+            List<String> removed = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : removedAt.entrySet()) {
+                if (entry.getValue() > clientVersion) {
+                    removed.add(entry.getKey());
+                }
+            }
+            return new Delta(version, false, changed, removed.toArray(new String[0]));
+        }
+
+        private void refreshLocked() {
+            long now = SystemClock.elapsedRealtime();
+            if (rescan || now - lastScan > REVALIDATE_INTERVAL) {
+                scanLocked(now);
+            } else if (!dirty.isEmpty()) {
+                long next = version + 1;
+                int count = 0;
+                for (String packageName : dirty) {
+                    PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, SNAPSHOT_FLAGS, userId);
+                    if (pi == null) {
+                        if (removeLocked(packageName, next)) count++;
+                    } else if (putLocked(pi, next)) {
+                        count++;
+                    }
+                }
+                if (count > 0) commitLocked(next);
+            }
+            dirty.clear();
+        }
+
+        private void scanLocked(long now) {
+            long next = version + 1;
+            int count = 0;
+            Set<String> seen = new HashSet<>();
+            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(SNAPSHOT_FLAGS, userId)) {
+                if (pi == null) continue;
+                seen.add(pi.packageName);
+                if (putLocked(pi, next)) count++;
+            }
+            for (Iterator<String> it = packages.keySet().iterator(); it.hasNext(); ) {
+                String packageName = it.next();
+                if (seen.contains(packageName)) continue;
+                it.remove();
+                changedAt.remove(packageName);
+                removedAt.put(packageName, next);
+                count++;
+            }
+            if (count > 0) commitLocked(next);
+            rescan = false;
+            lastScan = now;
+        }
+
+        private boolean putLocked(PackageInfo pi, long next) {
+            PackageInfo old = packages.get(pi.packageName);
+            if (old != null && old.lastUpdateTime == pi.lastUpdateTime
+                    && PackageInfoCompat.getLongVersionCode(old) == PackageInfoCompat.getLongVersionCode(pi)) {
+                return false;
+            }
+            packages.put(pi.packageName, pi);
+            changedAt.put(pi.packageName, next);
+            removedAt.remove(pi.packageName);
+            return true;
+        }
+
+        private boolean removeLocked(String packageName, long next) {
+            if (packages.remove(packageName) == null) return false;
+            changedAt.remove(packageName);
+            removedAt.put(packageName, next);
+            return true;
+        }
+
+        private void commitLocked(long next) {
+            version = next;
+            if (oldestDelta == 0) oldestDelta = next;
+            if (removedAt.size() > MAX_TOMBSTONES) {
+                // forget the oldest half; clients older than what remains get a full list
+                List<Long> versions = new ArrayList<>(removedAt.values());
+                versions.sort(null);
+                long cutoff = versions.get(versions.size() / 2);
+                removedAt.values().removeIf(v -> v <= cutoff);
+                oldestDelta = Math.max(oldestDelta, cutoff);
+            }
+            LOGGER.v("user %d at version %d, %d packages", userId, version, packages.size());
+        }
+    }
+
+    private static Snapshot snapshot(int userId) {
+        return SNAPSHOTS.computeIfAbsent(userId, Snapshot::new);
+    }
+
+    /**
+     * Marks the package named by a package broadcast as changed. A broadcast without a
+     * package or user marks every snapshot for a rescan.
+     */
+    public static void onPackageChanged(@Nullable Intent intent) {
+        Uri data = intent != null ? intent.getData() : null;
+        String packageName = data != null ? data.getSchemeSpecificPart() : null;
+        int uid = intent != null ? intent.getIntExtra(Intent.EXTRA_UID, -1) : -1;
+
+        if (uid == -1) {
+            for (Snapshot snapshot : SNAPSHOTS.values()) {
+                snapshot.markDirty(packageName);
+            }
+        } else {
+            Snapshot snapshot = SNAPSHOTS.get(uid / 100000);
+            if (snapshot != null) snapshot.markDirty(packageName);
+        }
+    }
+
+    /**
+     * Server side; the interface token has already been enforced.
+     */
+    public static void onTransact(@NonNull Parcel data, @NonNull Parcel reply) {
+        int userId = data.readInt();
+        long epoch = data.readLong();
+        long version = data.readLong();
+
+        Delta delta = snapshot(userId).since(epoch == EPOCH ? version : 0);
+
+        reply.writeNoException();
+        reply.writeLong(EPOCH);
+        reply.writeLong(delta.version);
+        reply.writeInt(delta.full ? 1 : 0);
+        new ParcelableListSlice<>(delta.changed).writeToParcel(reply, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+        reply.writeStringArray(delta.removed);
+    }
+
+    /**
+     * Client side copy of a user's snapshot, kept current with deltas.
+     */
+    public static final class Mirror {
+
+        private final int userId;
+        private final Map<String, PackageInfo> packages = new HashMap<>();
+        private long epoch;
+        private long version;
+
+        public Mirror(int userId) {
+            this.userId = userId;
+        }
+
+        /**
+         * Applies the changes since the last call and returns the current packages.
+         */
+        @NonNull
+        public synchronized List<PackageInfo> get(@NonNull IBinder binder, @NonNull String descriptor) throws RemoteException {
+            Parcel data = Parcel.obtain();
+            Parcel reply = Parcel.obtain();
+            try {
+                data.writeInterfaceToken(descriptor);
+                data.writeInt(userId);
+                data.writeLong(epoch);
+                data.writeLong(version);
+                binder.transact(BINDER_TRANSACTION_getPackagesSince, data, reply, 0);
+                reply.readException();
+
+                long newEpoch = reply.readLong();
+                long newVersion = reply.readLong();
+                boolean full = reply.readInt() != 0;
+                @SuppressWarnings("unchecked")
+                ParcelableListSlice<PackageInfo> changed = ParcelableListSlice.CREATOR.createFromParcel(reply);
+                String[] removed = reply.createStringArray();
+
+                if (full) packages.clear();
+                apply(changed.getList(), removed);
+                epoch = newEpoch;
+                version = newVersion;
+                return new ArrayList<>(packages.values());
+            } finally {
+                data.recycle();
+                reply.recycle();
+            }
+        }
+
+        private void apply(Collection<PackageInfo> changed, @Nullable String[] removed) {
+            for (PackageInfo pi : changed) {
+                packages.put(pi.packageName, pi);
+            }
+            if (removed != null) {
+                for (String packageName : removed) {
+                    packages.remove(packageName);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package frb.axeron.server;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import frb.axeron.server.util.Logger;
+import kotlin.collections.ArraysKt;
+import rikka.hidden.compat.PackageManagerApis;
+import rikka.hidden.compat.UserManagerApis;
+import rikka.parcelablelist.ParcelableListSlice;
+
+/**
+ * Cursor based variant of {@code BINDER_TRANSACTION_getApplications}.
+ * <p>
+ * The first call filters the installed packages on the server and keeps only their names
+ * behind a cursor; every page then fetches {@link PackageInfo} with the caller's flags for
+ * just the packages in that page. Clients pull what they render instead of one list with
+ * meta-data and permissions for every app on the device.
+ * <pre>
+ * request: int userId (-1 for all), int filters, int flags, int cursor (0 to start),
+ *          int offset, int limit
+ * reply:   int cursor, int total, int nextOffset (-1 at the end), ParcelableListSlice page
+ * </pre>
+ * A cursor that timed out or was evicted is answered with {@link #CURSOR_EXPIRED} and an
+ * empty page; the client has to start the query over, the server never does that for it.
+ */
+public class PagedApplications {
+
+    private static final Logger LOGGER = new Logger("PagedApplications");
+
+    public static final int BINDER_TRANSACTION_getApplicationsPaged = 20001;
+
+    public static final int FILTER_USER_ONLY = 1;
+    public static final int FILTER_SYSTEM_ONLY = 1 << 1;
+    public static final int FILTER_REQUESTING_PERMISSION = 1 << 2;
+    public static final int FILTER_EXCLUDE_MANAGERS = 1 << 3;
+
+    public static final int CURSOR_EXPIRED = -1;
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 200;
+
+    private static final long CURSOR_TTL = 30 * 1000;
+    private static final int MAX_CURSORS = 16;
+    private static final int MAX_RESTARTS = 3;
+
+    private static final Map<Integer, Cursor> CURSORS = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_CURSOR = new AtomicInteger(1);
+
+    private static final class Cursor {
+        final int[] userIds;
+        final String[] packageNames;
+        volatile long lastAccess;
+
+        Cursor(int[] userIds, String[] packageNames) {
+            this.userIds = userIds;
+            this.packageNames = packageNames;
+            this.lastAccess = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public static final class Page {
+        public final int cursor;
+        public final int total;
+        public final int nextOffset;
+        @NonNull
+        public final List<PackageInfo> packages;
+
+        Page(int cursor, int total, int nextOffset, @NonNull List<PackageInfo> packages) {
+            this.cursor = cursor;
+            this.total = total;
+            this.nextOffset = nextOffset;
+            this.packages = packages;
+        }
+
+        public boolean isExpired() {
+            return cursor == CURSOR_EXPIRED;
+        }
+    }
+
+    /**
+     * Server side; the interface token has already been enforced.
+     */
+    public static void onTransact(@NonNull Parcel data, @NonNull Parcel reply) {
+        int userId = data.readInt();
+        int filters = data.readInt();
+        int flags = data.readInt();
+        int cursorId = data.readInt();
+        int offset = Math.max(data.readInt(), 0);
+        int limit = data.readInt();
+        if (limit <= 0) limit = DEFAULT_PAGE_SIZE;
+        limit = Math.min(limit, MAX_PAGE_SIZE);
+
+        Cursor cursor;
+        if (cursorId == 0) {
+            cursor = open(userId, filters);
+            cursorId = register(cursor);
+            offset = 0;
+        } else {
+            cursor = CURSORS.get(cursorId);
+            if (cursor == null) {
+                LOGGER.d("cursor %d expired", cursorId);
+                reply.writeNoException();
+                reply.writeInt(CURSOR_EXPIRED);
+                reply.writeInt(0);
+                reply.writeInt(-1);
+                new ParcelableListSlice<PackageInfo>(Collections.emptyList())
+                        .writeToParcel(reply, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+                return;
+            }
+        }
+        cursor.lastAccess = SystemClock.elapsedRealtime();
+
+        int total = cursor.packageNames.length;
+        int end = Math.min(offset + limit, total);
+        List<PackageInfo> page = new ArrayList<>(Math.max(end - offset, 0));
+        for (int i = offset; i < end; i++) {
+            PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(
+                    cursor.packageNames[i], flags, cursor.userIds[i]);
+            if (pi != null) {
+                page.add(pi);
+            }
+        }
+
+        int nextOffset = end < total ? end : -1;
+        if (nextOffset == -1) {
+            CURSORS.remove(cursorId);
+        }
+
+        reply.writeNoException();
+        reply.writeInt(cursorId);
+        reply.writeInt(total);
+        reply.writeInt(nextOffset);
+        new ParcelableListSlice<>(page).writeToParcel(reply, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+    }
+
+    private static Cursor open(int userId, int filters) {
+        List<Integer> users;
+        if (userId == -1) {
+            users = UserManagerApis.getUserIdsNoThrow();
+        } else {
+            users = Collections.singletonList(userId);
+        }
+
+        boolean requesting = (filters & FILTER_REQUESTING_PERMISSION) != 0;
+        int scanFlags = requesting ? PackageManager.GET_PERMISSIONS : 0;
+
+        List<Integer> userIds = new ArrayList<>();
+        List<String> packageNames = new ArrayList<>();
+        for (int user : users) {
+            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(scanFlags, user)) {
+                if (pi == null || pi.applicationInfo == null) continue;
+
+                boolean isSystem = (pi.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+                if ((filters & FILTER_USER_ONLY) != 0 && isSystem) continue;
+                if ((filters & FILTER_SYSTEM_ONLY) != 0 && !isSystem) continue;
+                if ((filters & FILTER_EXCLUDE_MANAGERS) != 0
+                        && (ServerConstants.MANAGER_APPLICATION_ID.equals(pi.packageName)
+                        || ServerConstants.SHIZUKU_MANAGER_APPLICATION_ID.equals(pi.packageName))) {
+                    continue;
+                }
+                if (requesting && (pi.requestedPermissions == null
+                        || !ArraysKt.contains(pi.requestedPermissions, ServerConstants.PERMISSION))) {
+                    continue;
+                }
+
+                userIds.add(user);
+                packageNames.add(pi.packageName);
+            }
+        }
+
+        int[] users0 = new int[userIds.size()];
+        for (int i = 0; i < users0.length; i++) {
+            users0[i] = userIds.get(i);
+        }
+        return new Cursor(users0, packageNames.toArray(new String[0]));
+    }
+
+    private static int register(Cursor cursor) {
+        long now = SystemClock.elapsedRealtime();
+        CURSORS.values().removeIf(it -> now - it.lastAccess > CURSOR_TTL);
+        while (CURSORS.size() >= MAX_CURSORS) {
+            Map.Entry<Integer, Cursor> oldest = null;
+            for (Map.Entry<Integer, Cursor> entry : CURSORS.entrySet()) {
+                if (oldest == null || entry.getValue().lastAccess < oldest.getValue().lastAccess) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) break;
+            LOGGER.w("too many open cursors, evicting %d", oldest.getKey());
+            CURSORS.remove(oldest.getKey(), oldest.getValue());
+        }
+        int id = NEXT_CURSOR.getAndIncrement();
+        if (id == 0) id = NEXT_CURSOR.getAndIncrement();
+        CURSORS.put(id, cursor);
+        return id;
+    }
+
+    /**
+     * Client side: fetches one page. Pass {@code cursor = 0} to start a new query and the
+     * returned cursor and {@link Page#nextOffset} for the following pages. If the returned
+     * page {@link Page#isExpired() is expired}, the pages read so far belong to a query the
+     * server no longer has and the query must be started again.
+     */
+    @NonNull
+    public static Page fetchPage(@NonNull IBinder binder, @NonNull String descriptor,
+                                 int userId, int filters, int flags,
+                                 int cursor, int offset, int limit) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(descriptor);
+            data.writeInt(userId);
+            data.writeInt(filters);
+            data.writeInt(flags);
+            data.writeInt(cursor);
+            data.writeInt(offset);
+            data.writeInt(limit);
+            binder.transact(BINDER_TRANSACTION_getApplicationsPaged, data, reply, 0);
+            reply.readException();
+
+            int newCursor = reply.readInt();
+            int total = reply.readInt();
+            int nextOffset = reply.readInt();
+            @SuppressWarnings("unchecked")
+            ParcelableListSlice<PackageInfo> slice = ParcelableListSlice.CREATOR.createFromParcel(reply);
+            return new Page(newCursor, total, nextOffset, slice.getList());
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    /**
+     * Client side: pulls every page of a query, starting over if its cursor expires midway.
+     */
+    @NonNull
+    public static List<PackageInfo> fetchAll(@NonNull IBinder binder, @NonNull String descriptor,
+                                             int userId, int filters, int flags) throws RemoteException {
+        for (int restarts = 0; restarts < MAX_RESTARTS; restarts++) {
+            List<PackageInfo> result = new ArrayList<>();
+            int cursor = 0;
+            int offset = 0;
+            Page page;
+            do {
+                page = fetchPage(binder, descriptor, userId, filters, flags, cursor, offset, MAX_PAGE_SIZE);
+                if (page.isExpired()) break;
+                result.addAll(page.packages);
+                cursor = page.cursor;
+                offset = page.nextOffset;
+            } while (offset != -1);
+            if (!page.isExpired()) return result;
+        }
+        throw new IllegalStateException("application cursor expired " + MAX_RESTARTS + " times");
+    }
+}
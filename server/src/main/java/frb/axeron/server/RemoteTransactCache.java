@@ -0,0 +1,99 @@
+package frb.axeron.server;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the clients whose {@code BINDER_TRANSACTION_transact} already passed the full
+ * permission check, so later calls from the same process are forwarded after one map
+ * lookup instead of resolving the client record again.
+ * <p>
+ * An entry lives until its client dies or the permission of its uid changes. Every
+ * invalidation bumps a generation, and an entry resolved before that is not stored, so a
+ * check racing with a revoke cannot bring the old decision back.
+ */
+final class RemoteTransactCache {
+
+    static final class Client {
+        // clients of API 13 and later send the flags for the target transaction
+        final boolean readsFlags;
+
+        Client(boolean readsFlags) {
+            this.readsFlags = readsFlags;
+        }
+    }
+
+    private final Map<Long, Client> clients = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    private volatile int generation;
+
+    private static long key(int uid, int pid) {
+        return ((long) uid << 32) | (pid & 0xffffffffL);
+    }
+
+    @Nullable
+    Client get(int uid, int pid) {
+        return clients.get(key(uid, pid));
+    }
+
+    int generation() {
+        return generation;
+    }
+
+    void put(int uid, int pid, int generation, boolean readsFlags, IBinder token) {
+        long key = key(uid, pid);
+        Client client = new Client(readsFlags);
+        synchronized (lock) {
+            if (generation != this.generation) return;
+            clients.put(key, client);
+        }
+        try {
+            token.linkToDeath(() -> clients.remove(key, client), 0);
+        } catch (RemoteException e) {
+            clients.remove(key, client);
+        }
+    }
+
+    void invalidate(int uid) {
+        synchronized (lock) {
+            generation++;
+            clients.keySet().removeIf(key -> (int) (key >>> 32) == uid);
+        }
+    }
+
+    void invalidateAll() {
+        synchronized (lock) {
+            generation++;
+            clients.clear();
+        }
+    }
+
+    /**
+     * Forwards the rest of {@code data} to the target binder with the server's identity.
+     */
+    static void forward(Parcel data, Parcel reply, int flags, boolean readsFlags) throws RemoteException {
+        IBinder target = data.readStrongBinder();
+        int code = data.readInt();
+        int targetFlags = readsFlags ? data.readInt() : flags;
+
+        Parcel newData = Parcel.obtain();
+        try {
+            newData.appendFrom(data, data.dataPosition(), data.dataAvail());
+            long id = Binder.clearCallingIdentity();
+            try {
+                target.transact(code, newData, reply, targetFlags);
+            } finally {
+                Binder.restoreCallingIdentity(id);
+            }
+        } finally {
+            newData.recycle();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package frb.axeron.server;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.system.Os;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import frb.axeron.server.util.Logger;
+import frb.axeron.server.util.ProcessSpawner;
+import frb.axeron.shared.AxeronApiConstant;
+import frb.axeron.shared.PathHelper;
+import kotlin.collections.ArraysKt;
+
+/**
+ * Opt-in server features the manager can switch. Like {@code ax_perm_companion}, each one
+ * is kept as a marker file in the working directory, so the choice survives a restart of
+ * the server and is applied again when it starts.
+ * <pre>
+ * request: int feature, int enabled (1 or 0, -1 to only read it)
+ * reply:   int enabled
+ * </pre>
+ */
+public final class ServerFeatures {
+
+    private static final Logger LOGGER = new Logger("ServerFeatures");
+
+    public static final int BINDER_TRANSACTION_setFeature = 20005;
+
+    public static final int FEATURE_USER_SERVICE_STANDBY = 1;
+    public static final int FEATURE_SPAWNER = 2;
+
+    private static final int[] FEATURES = {FEATURE_USER_SERVICE_STANDBY, FEATURE_SPAWNER};
+
+    private ServerFeatures() {
+    }
+
+    private static File markerOf(int feature) {
+        String name;
+        switch (feature) {
+            case FEATURE_USER_SERVICE_STANDBY:
+                name = "ax_userservice_standby";
+                break;
+            case FEATURE_SPAWNER:
+                name = "ax_spawner";
+                break;
+            default:
+                throw new IllegalArgumentException("unknown feature " + feature);
+        }
+        return PathHelper.getWorkingPath(Os.getuid() == 0, AxeronApiConstant.folder.PARENT + name);
+    }
+
+    private static boolean isEnabled(int feature) {
+        switch (feature) {
+            case FEATURE_USER_SERVICE_STANDBY:
+                return UserServiceStandby.isEnabled();
+            case FEATURE_SPAWNER:
+                return ProcessSpawner.isEnabled();
+            default:
+                throw new IllegalArgumentException("unknown feature " + feature);
+        }
+    }
+
+    private static void setEnabled(int feature, boolean enabled) {
+        switch (feature) {
+            case FEATURE_USER_SERVICE_STANDBY:
+                UserServiceStandby.setEnabled(enabled);
+                break;
+            case FEATURE_SPAWNER:
+                ProcessSpawner.setEnabled(enabled);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown feature " + feature);
+        }
+    }
+
+    /**
+     * Turns on every feature whose marker exists. A feature already turned on with its
+     * system property stays on.
+     */
+    static void applyPersisted() {
+        for (int feature : FEATURES) {
+            if (markerOf(feature).exists()) {
+                LOGGER.i("feature %d enabled", feature);
+                setEnabled(feature, true);
+            }
+        }
+    }
+
+    /**
+     * Server side; the interface token has been enforced and the caller is the manager.
+     */
+    static void onTransact(@NonNull Parcel data, @NonNull Parcel reply) {
+        int feature = data.readInt();
+        int enabled = data.readInt();
+        if (!ArraysKt.contains(FEATURES, feature)) {
+            reply.writeException(new IllegalArgumentException("unknown feature " + feature));
+            return;
+        }
+
+        if (enabled != -1) {
+            File marker = markerOf(feature);
+            try {
+                if (enabled != 0) {
+                    if (!marker.exists() && !marker.createNewFile()) {
+                        LOGGER.w("failed to create %s", marker);
+                    }
+                } else if (marker.exists() && !marker.delete()) {
+                    LOGGER.w("failed to delete %s", marker);
+                }
+            } catch (IOException e) {
+                LOGGER.w(e, "persist feature %d", feature);
+            }
+            setEnabled(feature, enabled != 0);
+        }
+
+        reply.writeNoException();
+        reply.writeInt(isEnabled(feature) ? 1 : 0);
+    }
+
+    /**
+     * Client side: switches a feature, or only reads it with {@code enabled = -1}.
+     *
+     * @return whether the feature is on now
+     */
+    public static boolean set(@NonNull IBinder binder, @NonNull String descriptor,
+                              int feature, int enabled) throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(descriptor);
+            data.writeInt(feature);
+            data.writeInt(enabled);
+            binder.transact(BINDER_TRANSACTION_setFeature, data, reply, 0);
+            reply.readException();
+            return reply.readInt() != 0;
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+}
@@ -25,14 +25,38 @@ import rikka.parcelablelist.ParcelableListSlice
 class ShizukuServiceIntercept(val shizukuIntercept: ShizukuIntercept) : IShizukuService.Stub() {
     companion object {
         val LOGGER = Logger("ShizukuServiceIntercept")
+
+        /**
+         * Runs several of the small calls a client makes after attaching in one transaction.
+         * ```
+         * request: int count, then per call: int call, arguments of that call
+         * reply:   int count, then per call: int 0 and the result, or int -1 and a message
+         * ```
+         * Booleans are written as int. An unknown call fails the whole batch, so a client
+         * can fall back to separate calls.
+         */
+        const val BINDER_TRANSACTION_batch = 20003
+
+        const val BATCH_getVersion = 1
+        const val BATCH_getUid = 2
+        const val BATCH_checkSelfPermission = 3
+        const val BATCH_getSELinuxContext = 4
+        const val BATCH_getSystemProperty = 5 // String name, String defaultValue
+        const val BATCH_shouldShowRequestPermissionRationale = 6
+        const val BATCH_checkPermission = 7 // String permission
+
+        private const val MAX_BATCH_SIZE = 64
     }
 
+    // uid and SELinux context never change while the server runs
+    private val staticServerInfo by lazy { shizukuIntercept.getServerInfo() }
+
     override fun getVersion(): Int {
         return 13
     }
 
     override fun getUid(): Int {
-        return shizukuIntercept.getServerInfo().uid
+        return staticServerInfo.uid
     }
 
     override fun checkPermission(permission: String?): Int {
@@ -44,11 +68,14 @@ class ShizukuServiceIntercept(val shizukuIntercept: ShizukuIntercept) : IShizuku
         env: Array<out String?>?,
         dir: String?
     ): IRemoteProcess {
-        return shizukuIntercept.newProcess(cmd, env ?: shizukuIntercept.getEnvironment(TYPE_ENV).env, dir)
+        val processEnv = env
+            ?: (shizukuIntercept as? AxeronService)?.getMergedEnvp()
+            ?: shizukuIntercept.getEnvironment(TYPE_ENV).env
+        return shizukuIntercept.newProcess(cmd, processEnv, dir)
     }
 
     override fun getSELinuxContext(): String {
-        return shizukuIntercept.getServerInfo().selinuxContext
+        return staticServerInfo.selinuxContext
     }
 
     override fun getSystemProperty(
@@ -146,9 +173,29 @@ class ShizukuServiceIntercept(val shizukuIntercept: ShizukuIntercept) : IShizuku
                 result.writeToParcel(reply, Parcelable.PARCELABLE_WRITE_RETURN_VALUE)
                 return true
             }
+            PagedApplications.BINDER_TRANSACTION_getApplicationsPaged -> {
+                data.enforceInterface(AxeronApiConstant.server.SHIZUKU_BINDER_DESCRIPTOR)
+                PagedApplications.onTransact(data, reply!!)
+                return true
+            }
+            PackageSnapshots.BINDER_TRANSACTION_getPackagesSince -> {
+                data.enforceInterface(AxeronApiConstant.server.SHIZUKU_BINDER_DESCRIPTOR)
+                PackageSnapshots.onTransact(data, reply!!)
+                return true
+            }
+            BINDER_TRANSACTION_batch -> {
+                data.enforceInterface(AxeronApiConstant.server.SHIZUKU_BINDER_DESCRIPTOR)
+                onBatchTransact(data, reply!!)
+                return true
+            }
             BINDER_TRANSACTION_transact -> {
                 data.enforceInterface(AxeronApiConstant.server.SHIZUKU_BINDER_DESCRIPTOR)
-                shizukuIntercept.transactRemote(data, reply, flags)
+                val service = shizukuIntercept as? AxeronService
+                if (service != null) {
+                    service.transactRemoteCached(data, reply, flags)
+                } else {
+                    shizukuIntercept.transactRemote(data, reply, flags)
+                }
                 return true
             }
             14 -> {
@@ -165,4 +212,50 @@ class ShizukuServiceIntercept(val shizukuIntercept: ShizukuIntercept) : IShizuku
             else -> return super.onTransact(code, data, reply, flags)
         }
     }
-}
\ No newline at end of file
+
+    private fun onBatchTransact(data: Parcel, reply: Parcel) {
+        val count = data.readInt()
+        require(count in 0..MAX_BATCH_SIZE) { "invalid batch size $count" }
+
+        reply.writeNoException()
+        reply.writeInt(count)
+        repeat(count) {
+            val call = data.readInt()
+            // read the arguments before running the call, a failed call must not desync the rest
+            val args: Array<String?> = when (call) {
+                BATCH_getSystemProperty -> arrayOf(data.readString(), data.readString())
+                BATCH_checkPermission -> arrayOf(data.readString())
+                BATCH_getVersion, BATCH_getUid, BATCH_checkSelfPermission,
+                BATCH_getSELinuxContext, BATCH_shouldShowRequestPermissionRationale -> emptyArray()
+
+                else -> throw IllegalArgumentException("unknown batch call $call")
+            }
+            try {
+                when (call) {
+                    BATCH_getVersion -> reply.writeOkInt(getVersion())
+                    BATCH_getUid -> reply.writeOkInt(getUid())
+                    BATCH_checkSelfPermission -> reply.writeOkInt(if (checkSelfPermission()) 1 else 0)
+                    BATCH_getSELinuxContext -> reply.writeOkString(getSELinuxContext())
+                    BATCH_getSystemProperty -> reply.writeOkString(getSystemProperty(args[0], args[1]))
+                    BATCH_shouldShowRequestPermissionRationale ->
+                        reply.writeOkInt(if (shouldShowRequestPermissionRationale()) 1 else 0)
+
+                    BATCH_checkPermission -> reply.writeOkInt(checkPermission(args[0]))
+                }
+            } catch (e: Exception) {
+                reply.writeInt(-1)
+                reply.writeString(e.toString())
+            }
+        }
+    }
+
+    private fun Parcel.writeOkInt(value: Int) {
+        writeInt(0)
+        writeInt(value)
+    }
+
+    private fun Parcel.writeOkString(value: String?) {
+        writeInt(0)
+        writeString(value)
+    }
+}
@@ -0,0 +1,138 @@
+package frb.axeron.server;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import frb.axeron.server.util.Logger;
+import frb.axeron.starter.ServiceStarter;
+
+/**
+ * Keeps one user service host process booted ahead of time.
+ * <p>
+ * A cold user service pays for a full app_process start (ART, the manager apk on the
+ * class path, the starter classes) before it can send its binder. The standby has all of
+ * that done already and sits blocked on its stdin; handing it the arguments of a request
+ * turns it into that user service, and a new standby is started in the background.
+ * <p>
+ * A real zygote-style fork of a booted runtime is not possible outside of zygote, so this
+ * trades one idle process for the boot time. The standby runs in its own session like a
+ * cold user service, so killing its process group never reaches the server. Debuggable
+ * and 32-bit services always take the cold path.
+ * <p>
+ * The mode is off unless the server runs with {@code -Daxeron.userservice.standby=true}
+ * or the manager turns it on through {@link ServerFeatures}, which keeps the choice for
+ * later server starts.
+ */
+final class UserServiceStandby {
+
+    private static final Logger LOGGER = new Logger("UserServiceStandby");
+
+    private static final String APP_PROCESS = "/system/bin/app_process";
+    private static final String NICE_NAME = "axeron_userservice_standby";
+
+    private static volatile boolean enabled = Boolean.getBoolean("axeron.userservice.standby");
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "UserServiceStandby");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Process process;
+    private String apkPath;
+    private String[] env;
+
+    static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the standby into the requested user service if it was started with the same
+     * apk and environment, and starts the next standby either way.
+     *
+     * @return whether the request was handed off; if not, start the service cold
+     */
+    synchronized boolean handOff(String busybox, String apkPath, String[] env, String niceName, String[] args) {
+        Process current = process;
+        process = null;
+        boolean matches = current != null && current.isAlive()
+                && apkPath.equals(this.apkPath)
+                && env == this.env; // environment snapshots are replaced, never modified
+
+        boolean handedOff = false;
+        if (matches) {
+            try (OutputStream out = current.getOutputStream()) {
+                StringBuilder request = new StringBuilder();
+                request.append(ServiceStarter.ARG_NICE_NAME).append(niceName).append('\n');
+                for (String arg : args) {
+                    request.append(arg).append('\n');
+                }
+                request.append('\n');
+                out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+                handedOff = true;
+            } catch (IOException e) {
+                LOGGER.w(e, "hand off to standby");
+            }
+        }
+        if (!handedOff && current != null) {
+            current.destroy();
+        }
+
+        prepare(busybox, apkPath, env);
+        return handedOff;
+    }
+
+    private void prepare(String busybox, String apkPath, String[] env) {
+        executor.execute(() -> {
+            Process next;
+            try {
+                next = start(busybox, apkPath, env);
+            } catch (IOException e) {
+                LOGGER.w(e, "start standby");
+                return;
+            }
+            synchronized (this) {
+                if (process != null) process.destroy();
+                process = next;
+                this.apkPath = apkPath;
+                this.env = env;
+            }
+        });
+    }
+
+    @NonNull
+    private static Process start(String busybox, String apkPath, String[] env) throws IOException {
+        // busybox setsid execs in place, so the standby is its own process group leader
+        ProcessBuilder builder = new ProcessBuilder(
+                busybox, "setsid", APP_PROCESS, "/system/bin",
+                "--nice-name=" + NICE_NAME,
+                ServiceStarter.class.getName(), ServiceStarter.ARG_STANDBY)
+                .redirectOutput(new File("/dev/null"))
+                .redirectError(new File("/dev/null"));
+
+        if (env != null) {
+            Map<String, String> environment = builder.environment();
+            environment.clear();
+            for (String entry : env) {
+                int index = entry.indexOf('=');
+                if (index > 0) environment.put(entry.substring(0, index), entry.substring(index + 1));
+            }
+        }
+        builder.environment().put("CLASSPATH", apkPath);
+
+        LOGGER.i("starting standby %s", Arrays.toString(builder.command().toArray()));
+        return builder.start();
+    }
+}
@@ -0,0 +1,88 @@
+package frb.axeron.server;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The apk listener of every user service record, by record token, together with the
+ * records of each package. Both indexes change under one lock, so a package lookup never
+ * sees a record whose listener is already gone, and removing a package does not scan.
+ * <p>
+ * Every listener handed in is handed back exactly once, either when its token gets a new
+ * listener or when the token is removed, and the caller stops it then.
+ */
+final class UserServiceWatches<R> {
+
+    private final Map<String, Watch<R>> byToken = new HashMap<>();
+    private final Map<String, Set<R>> byPackage = new HashMap<>();
+
+    /**
+     * @return the listener the token had before, which is no longer tracked
+     */
+    @Nullable
+    synchronized ApkChangedListener put(String token, String packageName, R record, ApkChangedListener listener) {
+        Watch<R> previous = byToken.put(token, new Watch<>(packageName, record, listener));
+        if (previous != null) {
+            unindex(previous);
+        }
+        byPackage.computeIfAbsent(packageName, key -> new HashSet<>()).add(record);
+        return previous != null ? previous.listener : null;
+    }
+
+    /**
+     * @return the listener of the token, or {@code null} if it had none
+     */
+    @Nullable
+    synchronized ApkChangedListener remove(String token) {
+        Watch<R> watch = byToken.remove(token);
+        if (watch == null) return null;
+
+        unindex(watch);
+        return watch.listener;
+    }
+
+    synchronized List<R> recordsOf(String packageName) {
+        Set<R> records = byPackage.get(packageName);
+        return records == null ? Collections.emptyList() : new ArrayList<>(records);
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return byToken.size();
+    }
+
+    @VisibleForTesting
+    synchronized int packageCount() {
+        return byPackage.size();
+    }
+
+    private void unindex(Watch<R> watch) {
+        Set<R> records = byPackage.get(watch.packageName);
+        if (records == null) return;
+
+        records.remove(watch.record);
+        if (records.isEmpty()) {
+            byPackage.remove(watch.packageName);
+        }
+    }
+
+    private static final class Watch<R> {
+        final String packageName;
+        final R record;
+        final ApkChangedListener listener;
+
+        Watch(String packageName, R record, ApkChangedListener listener) {
+            this.packageName = packageName;
+            this.record = record;
+            this.listener = listener;
+        }
+    }
+}
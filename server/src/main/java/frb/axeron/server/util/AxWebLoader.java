@@ -10,19 +10,102 @@ import android.webkit.WebView;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
-public record AxWebLoader(Set<Route> routes) {
+/**
+ * Routes WebView requests to {@link PathHandler}s.
+ * <p>
+ * The routes are compiled once into scheme and host maps, each host holding a trie of
+ * its path prefixes. A request costs two hash lookups and one walk along its path, and
+ * the longest matching prefix wins; a route without a prefix matches every path of its
+ * host.
+ */
+public final class AxWebLoader {
+
+    private final Set<Route> routes;
+    private final Map<String, Map<String, PrefixNode>> router = new HashMap<>();
+
+    public AxWebLoader(Set<Route> routes) {
+        this.routes = routes;
+        for (Route route : routes) {
+            PrefixNode node = router
+                    .computeIfAbsent(route.scheme, k -> new HashMap<>())
+                    .computeIfAbsent(route.domain, k -> new PrefixNode());
+            String prefix = route.pathPrefix == null ? "" : route.pathPrefix;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.child(prefix.charAt(i));
+            }
+            node.handler = route.handler;
+        }
+    }
+
+    public Set<Route> routes() {
+        return routes;
+    }
 
     public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
-        for (Route route : routes) {
-            if (route.matches(request)) {
-                return route.handler.handle(view.getRootView().getContext(), view, request);
+        Uri url = request.getUrl();
+        if (url == null) return null;
+
+        PathHandler handler = find(url.getScheme(), url.getHost(), url.getPath());
+        if (handler == null) return null;
+        return handler.handle(view.getRootView().getContext(), view, request);
+    }
+
+    @Nullable
+    public PathHandler find(String scheme, String host, String path) {
+        if (scheme == null || host == null) return null;
+
+        Map<String, PrefixNode> hosts = router.get(scheme);
+        if (hosts == null) return null;
+        PrefixNode node = hosts.get(host);
+        if (node == null) return null;
+
+        PathHandler handler = node.handler;
+        if (path != null) {
+            for (int i = 0; i < path.length(); i++) {
+                node = node.next(path.charAt(i));
+                if (node == null) break;
+                if (node.handler != null) handler = node.handler;
             }
         }
-        return null;
+        return handler;
+    }
+
+    private static final class PrefixNode {
+        // route prefixes are short and share little, a sorted char array keeps nodes small
+        private char[] keys = new char[0];
+        private PrefixNode[] children = new PrefixNode[0];
+        PathHandler handler;
+
+        @Nullable
+        PrefixNode next(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        PrefixNode child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) return children[index];
+
+            int insert = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            PrefixNode[] newChildren = new PrefixNode[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            newKeys[insert] = c;
+            newChildren[insert] = new PrefixNode();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[insert];
+        }
     }
 
     public interface PathHandler {
@@ -0,0 +1,183 @@
+package frb.axeron.server.util;
+
+import java.util.Arrays;
+
+/**
+ * A thread-safe set of primitive {@code long} keys.
+ * <p>
+ * Keys are spread over a fixed number of lock-striped open-addressing tables, so adding,
+ * removing and looking up a key never boxes it and never allocates unless a table has
+ * to grow or shrink. Removal uses backward-shift deletion, which keeps the tables free
+ * of tombstones and lets memory go back down once keys are pruned.
+ * <p>
+ * {@link Long#MIN_VALUE} is reserved as the empty slot marker and cannot be stored.
+ */
+public final class ConcurrentLongSet {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int SEGMENT_COUNT = 16;
+    private static final int MIN_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    public ConcurrentLongSet() {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public static long pack(int high, int low) {
+        return ((long) high << 32) | (low & 0xffffffffL);
+    }
+
+    /**
+     * @return {@code true} if the key was not present before
+     */
+    public boolean add(long key) {
+        checkKey(key);
+        long hash = mix(key);
+        return segmentFor(hash).add(key, hash);
+    }
+
+    /**
+     * @return {@code true} if the key was present
+     */
+    public boolean remove(long key) {
+        checkKey(key);
+        long hash = mix(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public boolean contains(long key) {
+        checkKey(key);
+        long hash = mix(key);
+        return segmentFor(hash).contains(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 60) & (SEGMENT_COUNT - 1)];
+    }
+
+    private static void checkKey(long key) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Long.MIN_VALUE is reserved");
+        }
+    }
+
+    private static long mix(long key) {
+        // murmur3 fmix64
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static final class Segment {
+
+        private long[] table = newTable(MIN_CAPACITY);
+        private int size;
+
+        private static long[] newTable(int capacity) {
+            long[] table = new long[capacity];
+            Arrays.fill(table, EMPTY);
+            return table;
+        }
+
+        synchronized boolean add(long key, long hash) {
+            int mask = table.length - 1;
+            int i = (int) hash & mask;
+            long current;
+            while ((current = table[i]) != EMPTY) {
+                if (current == key) return false;
+                i = (i + 1) & mask;
+            }
+            table[i] = key;
+            if (++size > (table.length >> 1) + (table.length >> 2)) {
+                rehash(table.length << 1);
+            }
+            return true;
+        }
+
+        synchronized boolean contains(long key, long hash) {
+            int mask = table.length - 1;
+            int i = (int) hash & mask;
+            long current;
+            while ((current = table[i]) != EMPTY) {
+                if (current == key) return true;
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        synchronized boolean remove(long key, long hash) {
+            int mask = table.length - 1;
+            int i = (int) hash & mask;
+            long current;
+            while ((current = table[i]) != EMPTY) {
+                if (current == key) {
+                    shiftBack(i, mask);
+                    if (--size < (table.length >> 3) && table.length > MIN_CAPACITY) {
+                        rehash(table.length >> 1);
+                    }
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        synchronized void clear() {
+            table = newTable(MIN_CAPACITY);
+            size = 0;
+        }
+
+        private void shiftBack(int hole, int mask) {
+            int i = hole;
+            while (true) {
+                i = (i + 1) & mask;
+                long key = table[i];
+                if (key == EMPTY) break;
+                int ideal = (int) mix(key) & mask;
+                // move the entry into the hole if its probe sequence passes over the hole
+                if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+                    table[hole] = key;
+                    hole = i;
+                }
+            }
+            table[hole] = EMPTY;
+        }
+
+        private void rehash(int capacity) {
+            long[] old = table;
+            long[] fresh = newTable(capacity);
+            int mask = capacity - 1;
+            for (long key : old) {
+                if (key == EMPTY) continue;
+                int i = (int) mix(key) & mask;
+                while (fresh[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                fresh[i] = key;
+            }
+            table = fresh;
+        }
+    }
+}
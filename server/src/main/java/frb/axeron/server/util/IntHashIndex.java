@@ -0,0 +1,73 @@
+package frb.axeron.server.util;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.function.ToIntFunction;
+
+/**
+ * An immutable open-addressing index from an {@code int} key to a value.
+ * <p>
+ * It is meant to be rebuilt on every (rare) write and published through a volatile
+ * field, so readers get O(1) lookups without locking and without boxing the key.
+ */
+public final class IntHashIndex<V> {
+
+    private static final IntHashIndex<?> EMPTY = new IntHashIndex<>(new int[1], new Object[1]);
+
+    private final int[] keys;
+    private final Object[] values;
+    private final int mask;
+
+    private IntHashIndex(int[] keys, Object[] values) {
+        this.keys = keys;
+        this.values = values;
+        this.mask = keys.length - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> IntHashIndex<V> empty() {
+        return (IntHashIndex<V>) EMPTY;
+    }
+
+    /**
+     * Builds an index of {@code values}. When two values share a key the first one wins.
+     */
+    public static <V> IntHashIndex<V> of(Collection<V> values, ToIntFunction<V> keyOf) {
+        if (values.isEmpty()) return empty();
+
+        int capacity = Integer.highestOneBit(Math.max(values.size() * 2, 2) - 1) << 1;
+        int[] keys = new int[capacity];
+        Object[] slots = new Object[capacity];
+        int mask = capacity - 1;
+        for (V value : values) {
+            int key = keyOf.applyAsInt(value);
+            int i = mix(key) & mask;
+            while (slots[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (slots[i] == null) {
+                keys[i] = key;
+                slots[i] = value;
+            }
+        }
+        return new IntHashIndex<>(keys, slots);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V get(int key) {
+        int i = mix(key) & mask;
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == key) return (V) value;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,407 @@
+package frb.axeron.server.util;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts processes through a small native helper (libaxspawn.so) instead of forking the
+ * server itself.
+ * <p>
+ * The helper is started once, connects back over an abstract unix socket and then
+ * vfork+execs every requested command from its own tiny address space, passing along the
+ * pipes created here. Exit statuses come back over the same socket. The returned
+ * {@link Process} behaves like one from {@link Runtime#exec(String[], String[], File)},
+ * so it can be handed to RemoteProcessHolder unchanged.
+ * <p>
+ * The mode is off unless the server runs with {@code -Daxeron.spawner=true} or the
+ * manager turns it on through ServerFeatures. Whenever the helper cannot be used the
+ * command falls back to {@link Runtime#exec(String[], String[], File)}.
+ */
+public final class ProcessSpawner {
+
+    private static final Logger LOGGER = new Logger("ProcessSpawner");
+
+    private static final String HELPER_NAME = "libaxspawn.so";
+
+    private static final int MSG_SPAWNED = 1;
+    private static final int MSG_EXITED = 2;
+
+    private static final long SPAWN_TIMEOUT_MS = 5000;
+    private static final long RESTART_BACKOFF_MS = 30 * 1000;
+
+    private static volatile boolean enabled = Boolean.getBoolean("axeron.spawner");
+
+    private static ProcessSpawner instance;
+    private static long lastFailure;
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    @NonNull
+    public static Process exec(String[] cmd, @Nullable String[] env, @Nullable File dir) throws IOException {
+        if (enabled) {
+            ProcessSpawner spawner = obtain();
+            if (spawner != null) {
+                try {
+                    return spawner.spawn(cmd, env, dir);
+                } catch (SpawnerDeadException e) {
+                    LOGGER.w(e, "spawner unavailable, falling back");
+                }
+            }
+        }
+        return Runtime.getRuntime().exec(cmd, env, dir);
+    }
+
+    @Nullable
+    private static synchronized ProcessSpawner obtain() {
+        if (instance != null && instance.alive) return instance;
+        instance = null;
+
+        long now = System.currentTimeMillis();
+        if (lastFailure != 0 && now - lastFailure < RESTART_BACKOFF_MS) return null;
+
+        String libraryPath = System.getProperty("axeron.library.path");
+        if (libraryPath == null) {
+            lastFailure = now;
+            return null;
+        }
+        try {
+            instance = start(new File(libraryPath, HELPER_NAME));
+            lastFailure = 0;
+        } catch (IOException e) {
+            LOGGER.w(e, "start spawner");
+            lastFailure = now;
+        }
+        return instance;
+    }
+
+    private static ProcessSpawner start(File helper) throws IOException {
+        String name = "axeron_spawner." + Os.getpid() + "." + System.nanoTime();
+        Process process = Runtime.getRuntime().exec(new String[]{helper.getAbsolutePath(), name});
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            if (!"ready".equals(reader.readLine())) {
+                throw new IOException("spawner did not start");
+            }
+
+            LocalSocket socket = new LocalSocket(LocalSocket.SOCKET_STREAM);
+            socket.connect(new LocalSocketAddress(name, LocalSocketAddress.Namespace.ABSTRACT));
+            ProcessSpawner spawner = new ProcessSpawner(process, socket);
+            LOGGER.i("spawner started");
+            return spawner;
+        } catch (IOException e) {
+            process.destroy();
+            throw e;
+        } finally {
+            closeQuietly(process.getOutputStream());
+            closeQuietly(process.getInputStream());
+            closeQuietly(process.getErrorStream());
+        }
+    }
+
+    private static final class SpawnerDeadException extends IOException {
+        SpawnerDeadException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class Pending {
+        final SpawnedProcess process;
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        Pending(SpawnedProcess process) {
+            this.process = process;
+        }
+    }
+
+    private final Process helper;
+    private final LocalSocket socket;
+    private final OutputStream output;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, SpawnedProcess> running = new ConcurrentHashMap<>();
+    private volatile boolean alive = true;
+
+    private ProcessSpawner(Process helper, LocalSocket socket) throws IOException {
+        this.helper = helper;
+        this.socket = socket;
+        this.output = socket.getOutputStream();
+
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        Thread reader = new Thread(() -> readLoop(input), "ProcessSpawner");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private Process spawn(String[] cmd, @Nullable String[] env, @Nullable File dir) throws IOException {
+        if (cmd.length == 0) throw new IndexOutOfBoundsException();
+
+        ParcelFileDescriptor[] in = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor[] out = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor[] err = ParcelFileDescriptor.createPipe();
+        SpawnedProcess process = new SpawnedProcess(in[1], out[0], err[0]);
+
+        int id = nextId.incrementAndGet();
+        Pending request = new Pending(process);
+        pending.put(id, request);
+        try {
+            byte[] payload = encode(id, cmd, env, dir);
+            synchronized (this) {
+                if (!alive) throw new SpawnerDeadException("spawner is dead");
+                socket.setFileDescriptorsForSend(new FileDescriptor[]{
+                        in[0].getFileDescriptor(), out[1].getFileDescriptor(), err[1].getFileDescriptor()});
+                output.write(payload);
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            process.closeStreams();
+            die();
+            throw e instanceof SpawnerDeadException ? e : new SpawnerDeadException(e.getMessage());
+        } finally {
+            // the helper received its own copies
+            closeQuietly(in[0]);
+            closeQuietly(out[1]);
+            closeQuietly(err[1]);
+        }
+
+        int pid;
+        try {
+            pid = request.result.get(SPAWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            process.closeStreams();
+            throw new SpawnerDeadException(String.valueOf(e.getCause()));
+        } catch (TimeoutException | InterruptedException e) {
+            pending.remove(id);
+            process.closeStreams();
+            throw new IOException("spawn timed out: " + cmd[0]);
+        }
+
+        if (pid < 0) {
+            process.closeStreams();
+            throw new IOException("Cannot run program \"" + cmd[0] + "\""
+                    + (dir != null ? " (in directory \"" + dir + "\")" : "")
+                    + ": error=" + -pid + ", " + Os.strerror(-pid));
+        }
+        return process;
+    }
+
+    private static byte[] encode(int id, String[] cmd, @Nullable String[] env, @Nullable File dir) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(0); // length, patched below
+        data.writeInt(id);
+        data.writeInt(cmd.length);
+        for (String arg : cmd) writeString(data, arg);
+        if (env == null) {
+            data.writeInt(-1);
+        } else {
+            data.writeInt(env.length);
+            for (String entry : env) writeString(data, entry);
+        }
+        writeString(data, dir != null ? dir.getPath() : null);
+
+        byte[] payload = bytes.toByteArray();
+        int length = payload.length - 4;
+        payload[0] = (byte) (length >>> 24);
+        payload[1] = (byte) (length >>> 16);
+        payload[2] = (byte) (length >>> 8);
+        payload[3] = (byte) length;
+        return payload;
+    }
+
+    private static void writeString(DataOutputStream data, @Nullable String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private void readLoop(DataInputStream input) {
+        try {
+            while (true) {
+                int type = input.readInt();
+                int a = input.readInt();
+                int b = input.readInt();
+                if (type == MSG_SPAWNED) {
+                    Pending request = pending.remove(a);
+                    if (request == null) {
+                        // the caller gave up waiting; nobody owns the process
+                        if (b > 0) killQuietly(b, OsConstants.SIGKILL);
+                        continue;
+                    }
+                    if (b > 0) {
+                        request.process.pid = b;
+                        running.put(b, request.process);
+                    }
+                    request.result.complete(b);
+                } else if (type == MSG_EXITED) {
+                    SpawnedProcess process = running.remove(a);
+                    if (process != null) process.onExit(b);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.w("spawner connection closed: %s", e.getMessage());
+        }
+        die();
+    }
+
+    private void die() {
+        synchronized (this) {
+            if (!alive) return;
+            alive = false;
+        }
+        closeQuietly(socket);
+        helper.destroy();
+
+        IOException error = new SpawnerDeadException("spawner died");
+        for (Pending request : pending.values()) {
+            request.result.completeExceptionally(error);
+        }
+        pending.clear();
+        // the children live on but can no longer be waited for
+        for (SpawnedProcess process : running.values()) {
+            LOGGER.w("lost track of process %d", process.pid);
+            process.onExit(255);
+        }
+        running.clear();
+    }
+
+    private static void killQuietly(int pid, int signal) {
+        try {
+            Os.kill(pid, signal);
+        } catch (ErrnoException ignored) {
+        }
+    }
+
+    private static void closeQuietly(@Nullable AutoCloseable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private static final class SpawnedProcess extends Process {
+
+        private final OutputStream stdin;
+        private final InputStream stdout;
+        private final InputStream stderr;
+        private final CountDownLatch exited = new CountDownLatch(1);
+        volatile int pid;
+        private volatile int exitValue;
+
+        SpawnedProcess(ParcelFileDescriptor stdin, ParcelFileDescriptor stdout, ParcelFileDescriptor stderr) {
+            this.stdin = new ParcelFileDescriptor.AutoCloseOutputStream(stdin);
+            this.stdout = new ParcelFileDescriptor.AutoCloseInputStream(stdout);
+            this.stderr = new ParcelFileDescriptor.AutoCloseInputStream(stderr);
+        }
+
+        void onExit(int value) {
+            exitValue = value;
+            exited.countDown();
+        }
+
+        void closeStreams() {
+            closeQuietly(stdin);
+            closeQuietly(stdout);
+            closeQuietly(stderr);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return stdin;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return stderr;
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            exited.await();
+            return exitValue;
+        }
+
+        @Override
+        public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+            return exited.await(timeout, unit);
+        }
+
+        @Override
+        public int exitValue() {
+            if (exited.getCount() != 0) {
+                throw new IllegalThreadStateException("process hasn't exited");
+            }
+            return exitValue;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return exited.getCount() != 0;
+        }
+
+        @Override
+        public void destroy() {
+            signal(OsConstants.SIGTERM);
+        }
+
+        @Override
+        public Process destroyForcibly() {
+            signal(OsConstants.SIGKILL);
+            return this;
+        }
+
+        private void signal(int signal) {
+            // a pid is only ours until the helper reports the exit
+            if (isAlive()) killQuietly(pid, signal);
+            closeStreams();
+        }
+
+        @Override
+        public String toString() {
+            return "SpawnedProcess[pid=" + pid + "]";
+        }
+    }
+}
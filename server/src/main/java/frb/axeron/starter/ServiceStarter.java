@@ -4,11 +4,25 @@ import static frb.axeron.shared.ShizukuApiConstant.USER_SERVICE_ARG_PGID;
 import static frb.axeron.shared.ShizukuApiConstant.USER_SERVICE_ARG_TOKEN;
 
 import android.content.IContentProvider;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.system.Os;
 
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 import frb.axeron.server.ServerConstants;
@@ -22,8 +36,20 @@ import rikka.hidden.compat.ActivityManagerApis;
 public class ServiceStarter {
 
     public static final String DEBUG_ARGS;
+    public static final String ARG_STANDBY = "--standby";
+    public static final String ARG_NICE_NAME = "--nice-name=";
     private static final String TAG = "ShizukuServiceStarter";
     private static final String EXTRA_BINDER = "moe.shizuku.privileged.api.intent.extra.BINDER";
+    /**
+     * One-way callback the manager uses to hand over the server binder once the user
+     * service has been attached, see {@link #TRANSACTION_ATTACHED}.
+     */
+    public static final String EXTRA_ATTACH_CALLBACK = "frb.axeron.starter.extra.ATTACH_CALLBACK";
+    /**
+     * Carries the server binder, or null when attaching failed.
+     */
+    public static final int TRANSACTION_ATTACHED = IBinder.FIRST_CALL_TRANSACTION;
+    private static final long ATTACH_TIMEOUT_MS = 30 * 1000;
     private static final Logger LOGGER = new Logger(TAG);
     private static final String USER_SERVICE_CMD_FORMAT = "(CLASSPATH='%s' %s%s /system/bin " +
             "--nice-name='%s' frb.axeron.starter.ServiceStarter " +
@@ -32,6 +58,9 @@ public class ServiceStarter {
     // binder is dropped, so we hold the reference here.
     @SuppressWarnings("FieldCanBeLocal")
     private static IBinder shizukuBinder;
+    // held until the manager called back
+    private static AttachCallback attachCallback;
+    private static boolean attached;
 
     static {
         int sdk = Build.VERSION.SDK_INT;
@@ -49,8 +78,25 @@ public class ServiceStarter {
         }
     }
 
+    public static String processNameForUserService(String packageName, String processNameSuffix) {
+        return String.format("%s:%s", packageName, processNameSuffix);
+    }
+
+    /**
+     * Arguments for a user service started in the standby process, without --pgid which
+     * the standby adds itself.
+     */
+    public static String[] argsForUserService(String token, String packageName, String classname, int callingUid) {
+        return new String[]{
+                "--token=" + token,
+                "--package=" + packageName,
+                "--class=" + classname,
+                "--uid=" + callingUid
+        };
+    }
+
     public static String commandForUserService(String appProcess, String managerApkPath, String token, String packageName, String classname, String processNameSuffix, int callingUid, boolean debug) {
-        String processName = String.format("%s:%s", packageName, processNameSuffix);
+        String processName = processNameForUserService(packageName, processNameSuffix);
         return String.format(Locale.ENGLISH, USER_SERVICE_CMD_FORMAT,
                 managerApkPath, appProcess, debug ? (" " + DEBUG_ARGS) : "",
                 processName,
@@ -66,6 +112,15 @@ public class ServiceStarter {
         String token;
         int pgid;
 
+        if (args.length > 0 && ARG_STANDBY.equals(args[0])) {
+            preload();
+            args = awaitRequest();
+            if (args == null) {
+                System.exit(0);
+                return;
+            }
+        }
+
         UserService.setTag(TAG);
         Triple<IBinder, String, Integer> result = UserService.create(args);
 
@@ -88,6 +143,56 @@ public class ServiceStarter {
         LOGGER.i("service exited");
     }
 
+    /**
+     * Loads what every user service needs before the standby is asked for one.
+     */
+    private static void preload() {
+        for (Class<?> cls : new Class<?>[]{
+                UserService.class, BinderContainer.class, IContentProviderCompat.class,
+                ActivityManagerApis.class, Bundle.class}) {
+            try {
+                Class.forName(cls.getName(), true, ServiceStarter.class.getClassLoader());
+            } catch (Throwable tr) {
+                LOGGER.w("preload %s: %s", cls.getName(), tr);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the server hands over a request: the process name, then one argument
+     * per line, ended by an empty line. Returns null when the server closed the pipe
+     * without one.
+     */
+    private static String[] awaitRequest() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        List<String> args = new ArrayList<>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                if (line.startsWith(ARG_NICE_NAME)) {
+                    setProcessName(line.substring(ARG_NICE_NAME.length()));
+                } else {
+                    args.add(line);
+                }
+            }
+            if (line == null) return null;
+        } catch (IOException e) {
+            LOGGER.e("read standby request: %s", e);
+            return null;
+        }
+        // busybox setsid made the standby a process group leader
+        args.add("--pgid=" + Os.getpid());
+        return args.toArray(new String[0]);
+    }
+
+    private static void setProcessName(String name) {
+        try {
+            Process.class.getDeclaredMethod("setArgV0", String.class).invoke(null, name);
+        } catch (Throwable tr) {
+            LOGGER.w("setArgV0 %s: %s", name, tr);
+        }
+    }
+
     private static boolean sendBinder(IBinder binder, String token, int pgid) {
         return sendBinder(binder, token, pgid, true);
     }
@@ -122,32 +227,37 @@ public class ServiceStarter {
                 LOGGER.e("retry works");
             }
 
+            attachCallback = new AttachCallback();
+
             Bundle extra = new Bundle();
             extra.putParcelable(EXTRA_BINDER, new BinderContainer(binder));
+            extra.putParcelable(EXTRA_ATTACH_CALLBACK, new BinderContainer(attachCallback));
             extra.putString(USER_SERVICE_ARG_TOKEN, token);
             extra.putInt(USER_SERVICE_ARG_PGID, pgid);
 
             Bundle reply = IContentProviderCompat.call(provider, null, null, name, "sendUserService", null, extra);
 
-            if (reply != null) {
-                reply.setClassLoader(BinderContainer.class.getClassLoader());
-
-                LOGGER.i(TAG, String.format("send binder to %s in user %d", packageName, userId));
-                BinderContainer container = reply.getParcelable(EXTRA_BINDER);
-
-                if (container != null && container.binder != null && container.binder.pingBinder()) {
-                    shizukuBinder = container.binder;
-                    shizukuBinder.linkToDeath(() -> {
-                        LOGGER.i("exiting...");
-                        System.exit(0);
-                    }, 0);
-                    return true;
-                } else {
-                    LOGGER.w("server binder not received");
-                }
+            if (reply == null) {
+                LOGGER.w("user service not accepted by %s", packageName);
+                return false;
             }
+            reply.setClassLoader(BinderContainer.class.getClassLoader());
+            LOGGER.i(TAG, String.format("send binder to %s in user %d", packageName, userId));
 
-            return false;
+            BinderContainer container = reply.getParcelable(EXTRA_BINDER);
+            if (container != null && container.binder != null) {
+                // the manager already had the server binder
+                onAttached(container.binder);
+            } else {
+                // the manager attaches once it has the server binder and calls back
+                new Handler(Looper.getMainLooper()).postDelayed(() -> {
+                    if (!attached) {
+                        LOGGER.w("server binder not received in %d ms", ATTACH_TIMEOUT_MS);
+                        System.exit(1);
+                    }
+                }, ATTACH_TIMEOUT_MS);
+            }
+            return true;
         } catch (Throwable tr) {
             LOGGER.e("failed send binder to %s in user %d, %s", packageName, userId, tr);
             return false;
@@ -161,4 +271,39 @@ public class ServiceStarter {
             }
         }
     }
+
+    private static void onAttached(IBinder server) {
+        if (attached) return;
+        if (server == null || !server.pingBinder()) {
+            LOGGER.w("server binder not received");
+            System.exit(1);
+            return;
+        }
+        try {
+            server.linkToDeath(() -> {
+                LOGGER.i("exiting...");
+                System.exit(0);
+            }, 0);
+        } catch (RemoteException e) {
+            LOGGER.w("server died before attach");
+            System.exit(1);
+            return;
+        }
+        shizukuBinder = server;
+        attached = true;
+        attachCallback = null;
+    }
+
+    private static final class AttachCallback extends Binder {
+
+        @Override
+        protected boolean onTransact(int code, @NonNull Parcel data, Parcel reply, int flags) throws RemoteException {
+            if (code == TRANSACTION_ATTACHED) {
+                IBinder server = data.readStrongBinder();
+                new Handler(Looper.getMainLooper()).post(() -> onAttached(server));
+                return true;
+            }
+            return super.onTransact(code, data, reply, flags);
+        }
+    }
 }
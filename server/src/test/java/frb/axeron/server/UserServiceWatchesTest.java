@@ -0,0 +1,105 @@
+package frb.axeron.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+public class UserServiceWatchesTest {
+
+    @Test
+    public void replacedListenerIsHandedBack() {
+        UserServiceWatches<String> watches = new UserServiceWatches<>();
+        ApkChangedListener first = listener();
+        ApkChangedListener second = listener();
+
+        assertNull(watches.put("token", "com.example", "record", first));
+        assertSame(first, watches.put("token", "com.example", "record", second));
+        assertSame(second, watches.remove("token"));
+        assertNull(watches.remove("token"));
+        assertEquals(0, watches.size());
+        assertEquals(0, watches.packageCount());
+    }
+
+    @Test
+    public void recordsOfPackage() {
+        UserServiceWatches<String> watches = new UserServiceWatches<>();
+        watches.put("a1", "com.a", "a1", listener());
+        watches.put("a2", "com.a", "a2", listener());
+        watches.put("b1", "com.b", "b1", listener());
+
+        assertEquals(new HashSet<>(List.of("a1", "a2")), new HashSet<>(watches.recordsOf("com.a")));
+        assertEquals(List.of("b1"), watches.recordsOf("com.b"));
+        assertTrue(watches.recordsOf("com.c").isEmpty());
+
+        watches.remove("a1");
+        assertEquals(List.of("a2"), watches.recordsOf("com.a"));
+    }
+
+    /**
+     * Creates, replaces and removes records for a handful of packages the way the user
+     * service manager does, and checks that every listener that went in came back out to
+     * be stopped and that nothing is left behind.
+     */
+    @Test
+    public void listenersDoNotLeak() {
+        UserServiceWatches<String> watches = new UserServiceWatches<>();
+        Set<ApkChangedListener> started = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<ApkChangedListener> stopped = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (int round = 0; round < 100; round++) {
+            List<String> tokens = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String token = "token-" + i;
+                String packageName = "com.example" + (i % 5);
+                tokens.add(token);
+
+                ApkChangedListener listener = listener();
+                started.add(listener);
+                ApkChangedListener previous = watches.put(token, packageName, token, listener);
+                if (previous != null) stopped.add(previous);
+                // the apk changed, the record gets a new listener
+                if (i % 3 == 0) {
+                    ApkChangedListener renewed = listener();
+                    started.add(renewed);
+                    stopped.add(watches.put(token, packageName, token, renewed));
+                }
+            }
+
+            // half of the records go through a package removal, the rest one by one
+            for (int p = 0; p < 5; p += 2) {
+                for (String record : watches.recordsOf("com.example" + p)) {
+                    stopped.add(watches.remove(record));
+                }
+            }
+            for (String token : tokens) {
+                ApkChangedListener listener = watches.remove(token);
+                if (listener != null) stopped.add(listener);
+            }
+
+            assertEquals(0, watches.size());
+            assertEquals(0, watches.packageCount());
+        }
+
+        assertEquals(started.size(), stopped.size());
+        assertTrue(stopped.containsAll(started));
+    }
+
+    // a lambda without captures may be one shared instance, every listener here must differ
+    private static ApkChangedListener listener() {
+        return new ApkChangedListener() {
+            @Override
+            public void onApkChanged() {
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+package frb.axeron.server.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compares the compiled router of {@link AxWebLoader} with a linear scan over the same
+ * routes, 20 routes and 10k lookups.
+ * <pre>
+ * ./gradlew :server:testDebugUnitTest --tests frb.axeron.server.util.AxWebLoaderBenchmark -i
+ * </pre>
+ */
+public class AxWebLoaderBenchmark {
+
+    private static final AxWebLoader.PathHandler HANDLER = (context, view, request) -> null;
+
+    private static final int LOOKUPS = 10_000;
+    private static final int ROUTES = 20;
+
+    @Test
+    public void compare() {
+        Set<AxWebLoader.Route> routes = new HashSet<>();
+        for (int i = 0; i < ROUTES; i++) {
+            String host = "plugin" + (i % 4) + ".axeron";
+            routes.add(new AxWebLoader.Route("https", host, "/assets/" + i + "/", HANDLER));
+        }
+        routes.add(new AxWebLoader.Route("https", "plugin0.axeron", null, HANDLER));
+        AxWebLoader loader = new AxWebLoader(routes);
+        List<AxWebLoader.Route> list = new ArrayList<>(routes);
+
+        String[] hosts = new String[LOOKUPS];
+        String[] paths = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            hosts[i] = "plugin" + (i % 5) + ".axeron"; // plugin4 has no routes
+            paths[i] = "/assets/" + (i % (ROUTES + 5)) + "/js/chunk-" + i + ".js";
+        }
+
+        for (int round = 0; round < 5; round++) {
+            long begin = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (loader.find("https", hosts[i], paths[i]) != null) hits++;
+            }
+            long router = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            int linearHits = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (scan(list, "https", hosts[i], paths[i]) != null) linearHits++;
+            }
+            long linear = System.nanoTime() - begin;
+
+            System.out.printf(Locale.ROOT, "round %d: router %6d us, linear %6d us, hits %d/%d%n",
+                    round, router / 1000, linear / 1000, hits, linearHits);
+            assertEquals(linearHits, hits);
+        }
+    }
+
+    // what shouldInterceptRequest did before the routes were compiled
+    private static AxWebLoader.PathHandler scan(List<AxWebLoader.Route> routes, String scheme, String host, String path) {
+        for (AxWebLoader.Route route : routes) {
+            if (!scheme.equals(route.scheme())) continue;
+            if (!host.equals(route.domain())) continue;
+            String prefix = route.pathPrefix();
+            if (prefix == null || prefix.isEmpty() || path.startsWith(prefix)) return route.handler();
+        }
+        return null;
+    }
+}
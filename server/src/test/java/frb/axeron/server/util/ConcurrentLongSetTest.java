@@ -0,0 +1,156 @@
+package frb.axeron.server.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ConcurrentLongSetTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void addRemoveContains() {
+        ConcurrentLongSet set = new ConcurrentLongSet();
+        long key = ConcurrentLongSet.pack(10123, 4567);
+
+        assertTrue(set.add(key));
+        assertFalse(set.add(key));
+        assertTrue(set.contains(key));
+        assertFalse(set.contains(ConcurrentLongSet.pack(10123, -1)));
+        assertTrue(set.remove(key));
+        assertFalse(set.remove(key));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void packKeepsNegativeLow() {
+        assertEquals(0x0000_2710_ffff_ffffL, ConcurrentLongSet.pack(10000, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsReservedKey() {
+        new ConcurrentLongSet().add(Long.MIN_VALUE);
+    }
+
+    @Test
+    public void growsAndShrinks() {
+        ConcurrentLongSet set = new ConcurrentLongSet();
+        for (long i = 0; i < 100_000; i++) {
+            assertTrue(set.add(i * 31));
+        }
+        assertEquals(100_000, set.size());
+        for (long i = 0; i < 100_000; i += 2) {
+            assertTrue(set.remove(i * 31));
+        }
+        for (long i = 0; i < 100_000; i++) {
+            assertEquals(i % 2 != 0, set.contains(i * 31));
+        }
+        assertEquals(50_000, set.size());
+    }
+
+    /**
+     * Every thread owns its own keys, so after the run the set must hold exactly the keys
+     * each thread left in it, whatever the interleaving on the shared segments was.
+     */
+    @Test
+    public void disjointWriters() throws Exception {
+        ConcurrentLongSet set = new ConcurrentLongSet();
+        int perThread = 50_000;
+
+        runConcurrently(thread -> {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < perThread; i++) {
+                    assertTrue(set.add(ConcurrentLongSet.pack(thread, i)));
+                }
+                for (int i = 0; i < perThread; i++) {
+                    assertTrue(set.contains(ConcurrentLongSet.pack(thread, i)));
+                }
+                // leave the odd keys in on the last round only
+                for (int i = 0; i < perThread; i++) {
+                    if (round < 2 || i % 2 == 0) {
+                        assertTrue(set.remove(ConcurrentLongSet.pack(thread, i)));
+                    }
+                }
+            }
+        });
+
+        assertEquals(THREADS * perThread / 2, set.size());
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int i = 0; i < perThread; i++) {
+                assertEquals(i % 2 != 0, set.contains(ConcurrentLongSet.pack(thread, i)));
+            }
+        }
+    }
+
+    /**
+     * All threads fight over a small key range. A key is in the set at the end exactly when
+     * the successful adds for it outnumber the successful removes.
+     */
+    @Test
+    public void contendedKeys() throws Exception {
+        ConcurrentLongSet set = new ConcurrentLongSet();
+        int keys = 256;
+        AtomicIntegerArray balance = new AtomicIntegerArray(keys);
+
+        runConcurrently(thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 200_000; i++) {
+                int k = random.nextInt(keys);
+                // negative pids stand in for uid-wide entries
+                long key = ConcurrentLongSet.pack(k, k % 3 == 0 ? -1 : k);
+                if (random.nextBoolean()) {
+                    if (set.add(key)) balance.incrementAndGet(k);
+                } else {
+                    if (set.remove(key)) balance.decrementAndGet(k);
+                }
+            }
+        });
+
+        int size = 0;
+        for (int k = 0; k < keys; k++) {
+            int b = balance.get(k);
+            assertTrue("key " + k + " balance " + b, b == 0 || b == 1);
+            assertEquals(b == 1, set.contains(ConcurrentLongSet.pack(k, k % 3 == 0 ? -1 : k)));
+            size += b;
+        }
+        assertEquals(size, set.size());
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runConcurrently(Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    worker.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}